@@ -504,7 +504,13 @@ public class Parser {
             else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
-                    curtrans.start();
+                    if (s instanceof ZQuery) {
+                        // a query on its own reads a snapshot, so it
+                        // neither blocks nor waits for writers
+                        curtrans.startReadOnly();
+                    } else {
+                        curtrans.start();
+                    }
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
                 }
@@ -92,7 +92,10 @@ public class Catalog {
 
         }
 
-        this.catalog_List.remove(key_rm);
+        Help_table replaced = this.catalog_List.remove(key_rm);
+        if (replaced != null && replaced.table_file != file) {
+            replaced.table_file.close();
+        }
         this.catalog_List.put(help_key, help_table);
 
     }
@@ -187,9 +190,12 @@ public class Catalog {
         throw new NoSuchElementException();
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
         // some code goes here
+        for (Help_table table : this.catalog_List.values()) {
+            table.table_file.close();
+        }
         this.catalog_List.clear();
     }
     
@@ -204,10 +210,20 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(catalogFile));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [mmap]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                // table annotations follow the field list
+                boolean mmap = false;
+                for (String annotation : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (annotation.equals("mmap"))
+                        mmap = true;
+                    else if (!annotation.isEmpty()) {
+                        System.out.println("Unknown annotation " + annotation);
+                        System.exit(0);
+                    }
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<>();
                 ArrayList<Type> types = new ArrayList<>();
@@ -236,6 +252,7 @@ public class Catalog {
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                tabHf.setMemoryMapped(mmap);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
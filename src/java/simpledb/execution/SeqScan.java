@@ -7,6 +7,7 @@ import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
@@ -28,6 +29,8 @@ public class SeqScan implements OpIterator {
     public int tableid;
     public String tableAlias;
     private DbFileIterator dbfileiterator;
+    // read-ahead window for this scan, or -1 to use the table's setting
+    private int readAhead = -1;
 
     /**
      * a list used to store TDItem
@@ -103,11 +106,31 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Sets how many pages ahead of this scan are prefetched into the buffer
+     * pool, overriding the read-ahead window of the table (see
+     * {@link HeapFile#setReadAhead}). Takes effect on the next open(); it is
+     * ignored for tables that are not heap files.
+     *
+     * @param pages the read-ahead window, in pages; 0 disables read-ahead
+     */
+    public void setReadAhead(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("read-ahead must not be negative");
+        }
+        this.readAhead = pages;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         for (Help_key key :Catalog.catalog_List.keySet()){
             if(key.table_id==this.tableid){
-                this.dbfileiterator =  Catalog.catalog_List.get(key).table_file.iterator(this.tid);
+                DbFile file = Catalog.catalog_List.get(key).table_file;
+                if (this.readAhead >= 0 && file instanceof HeapFile) {
+                    this.dbfileiterator = ((HeapFile) file).iterator(this.tid, this.readAhead);
+                } else {
+                    this.dbfileiterator = file.iterator(this.tid);
+                }
                 dbfileiterator.open();
                 break;
             }
@@ -0,0 +1,370 @@
+package simpledb.index;
+
+import java.io.IOException;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeBulkLoader loads a batch of tuples into a BTreeFile on behalf of a transaction,
+ * while the tree stays in use by other transactions. Unlike BTreeFileEncoder, which
+ * builds a new tree offline, it adds to the tree in place.
+ *
+ * The loader sorts the tuples first, spilling sorted runs to temporary files if there
+ * are more than fit into its sort buffer. Tuples with keys up to the largest key in the
+ * tree are inserted one at a time, like BufferPool.insertTuple() does. The remaining
+ * tuples, typically most of the batch, are appended to the right edge of the tree:
+ * they fill leaf pages up to the fill factor one after another, and every new page is
+ * added to its parent on the right edge of the level above, so the internal levels
+ * grow bottom-up without any page splits. At the end, the pages on the right edge are
+ * redistributed or merged with their left siblings if they are less than half full.
+ *
+ * The load locks the pages on the right edge of the tree, from the root page down to the
+ * right-most leaf page, with read-write permission until the transaction completes, so
+ * that no other transaction adds keys beyond the largest key meanwhile. Every descent
+ * into the tree passes the root page, so a load blocks all other readers and writers of
+ * the index until its transaction completes, including inserts below the largest key.
+ * Pages the load has filled are written to disk early, with their log records, whenever
+ * a quarter of the buffer pool is dirty, so a batch may be much larger than the buffer
+ * pool.
+ */
+public class BTreeBulkLoader {
+
+	/** Default number of tuples sorted in memory */
+	public static final int DEFAULT_SORT_BUFFER_SIZE = 500000;
+
+	private final BTreeFile f;
+	private double fillFactor = 1.0;
+	private int sortBufferSize = DEFAULT_SORT_BUFFER_SIZE;
+
+	/**
+	 * Constructor
+	 * @param f - the B+ tree to load tuples into
+	 */
+	public BTreeBulkLoader(BTreeFile f) {
+		this.f = f;
+	}
+
+	/**
+	 * Sets how full the appended pages are made, as a fraction of their capacity.
+	 * Leaving room in them makes later inserts into their key range split fewer pages.
+	 * @param fillFactor - the fraction, between 0.5 and 1; the default is 1
+	 */
+	public void setFillFactor(double fillFactor) {
+		if (fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		this.fillFactor = fillFactor;
+	}
+
+	/**
+	 * @return how full the appended pages are made, as a fraction of their capacity
+	 */
+	public double getFillFactor() {
+		return fillFactor;
+	}
+
+	/**
+	 * Sets the number of tuples sorted in memory. Larger batches are sorted in runs of
+	 * this many tuples, which are written to temporary files and merged.
+	 * @param sortBufferSize - the number of tuples
+	 */
+	public void setSortBufferSize(int sortBufferSize) {
+		if (sortBufferSize <= 0) {
+			throw new IllegalArgumentException("sort buffer size must be positive");
+		}
+		this.sortBufferSize = sortBufferSize;
+	}
+
+	/**
+	 * Loads tuples into the tree on behalf of a transaction. The tuples are in the tree
+	 * once the transaction commits, and none of them is if it aborts.
+	 *
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to load, in any order
+	 * @return the number of tuples loaded
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public long load(TransactionId tid, Iterator<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		if (f.isMemoryMapped()) {
+			throw new DbException("table " + f.getId() + " is memory-mapped read-only");
+		}
+		try (TupleSorter sorter = new TupleSorter(f.getTupleDesc(), f.keyFields(), sortBufferSize)) {
+			while (tuples.hasNext()) {
+				sorter.add(tuples.next());
+			}
+			sorter.sort();
+			if (sorter.size() > 0) {
+				new Load(tid).run(sorter);
+			}
+			return sorter.size();
+		}
+	}
+
+	/**
+	 * The state of one call of load().
+	 */
+	private class Load {
+		private final TransactionId tid;
+		private final BufferPool bp = Database.getBufferPool();
+		private final BTreePageId rootPtrId = BTreeRootPtrPage.getId(f.getId());
+		// pages dirtied since the last time they were written early
+		private int dirtied = 0;
+
+		Load(TransactionId tid) {
+			this.tid = tid;
+		}
+
+		void run(TupleSorter sorter) throws DbException, IOException, TransactionAbortedException {
+			// lock the right edge, so no other transaction adds keys beyond its largest key
+			Field max = null;
+			BTreeLeafPage last = lockRightEdge();
+			Iterator<Tuple> it = last.reverseIterator();
+			if (it.hasNext()) {
+				max = f.getKey(it.next());
+			}
+
+			Tuple t = sorter.next();
+			while (t != null && max != null && !f.getKey(t).compare(Op.GREATER_THAN, max)) {
+				bp.insertTuple(tid, f.getId(), t);
+				pagesDirtied(1);
+				t = sorter.next();
+			}
+			if (t == null) {
+				return;
+			}
+
+			append(t, sorter);
+			balanceRightEdge();
+		}
+
+		/**
+		 * Locks the pages on the right edge of the tree with read-write permission,
+		 * creating the root page if the tree has none yet.
+		 * @return the right-most leaf page
+		 */
+		private BTreeLeafPage lockRightEdge() throws DbException, IOException, TransactionAbortedException {
+			Map<PageId, Page> dirtypages = new HashMap<>();
+			BTreeRootPtrPage rootPtr = f.getRootPtrPage(tid, dirtypages);
+			if (rootPtr.getRootId() == null) {
+				rootPtr = (BTreeRootPtrPage) f.getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+				if (rootPtr.getRootId() == null) {
+					rootPtr.setRootId(new BTreePageId(f.getId(), f.numPages(), BTreePageId.LEAF));
+				}
+				bp.cacheDirtyPages(tid, dirtypages.values());
+			}
+			BTreePageId pid = rootPtr.getRootId();
+			while (true) {
+				bp.lockPage(tid, pid, Permissions.READ_WRITE);
+				Page page = bp.getPage(tid, pid, Permissions.READ_ONLY);
+				if (pid.pgcateg() == BTreePageId.LEAF) {
+					return (BTreeLeafPage) page;
+				}
+				pid = lastChild((BTreeInternalPage) page);
+			}
+		}
+
+		/**
+		 * Appends sorted tuples, all with keys greater than the largest key in the tree, to
+		 * the right-most leaf page and to new leaf pages after it.
+		 * @param t - the first tuple
+		 * @param sorter - the sorter holding the remaining tuples
+		 */
+		private void append(Tuple t, TupleSorter sorter)
+				throws DbException, IOException, TransactionAbortedException {
+			BTreePageId lastId = rightEdge().getLast();
+			while (t != null) {
+				Map<PageId, Page> dirtypages = new HashMap<>();
+				BTreeLeafPage leaf = (BTreeLeafPage) f.getPage(tid, dirtypages, lastId, Permissions.READ_WRITE);
+				int capacity = Math.max(1, (int) (fillFactor * leaf.getMaxTuples()));
+				int n = leaf.getNumTuples();
+				if (n >= capacity) {
+					BTreeLeafPage next = (BTreeLeafPage) f.getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+					f.startStructureModification();
+					try {
+						leaf.setRightSiblingId(next.getId());
+						next.setLeftSiblingId(leaf.getId());
+						appendChild(dirtypages, leaf, f.separator(f.getKey(leaf.reverseIterator().next()), f.getKey(t)), next);
+					} finally {
+						f.endStructureModification();
+					}
+					leaf = next;
+					lastId = next.getId();
+					n = 0;
+				}
+				for (; t != null && n < capacity; n++) {
+					leaf.insertTuple(t);
+					t = sorter.next();
+				}
+				bp.cacheDirtyPages(tid, dirtypages.values());
+				pagesDirtied(dirtypages.size());
+			}
+		}
+
+		/**
+		 * Adds a new page to the right of the right-most page on its level. The new entry
+		 * goes to the parent of that page if it has room for it up to the fill factor.
+		 * Otherwise, the level continues in a new parent page, which takes the right-most
+		 * child of the old parent along as its left-most child, and the new parent is
+		 * added to the level above in turn.
+		 *
+		 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+		 * @param page - the right-most page on its level
+		 * @param key - the key separating the new page from page
+		 * @param next - the new page
+		 */
+		private void appendChild(Map<PageId, Page> dirtypages, BTreePage page, Field key, BTreePage next)
+				throws DbException, IOException, TransactionAbortedException {
+			BTreePageId parentId = page.getParentId();
+			BTreeEntry entry = new BTreeEntry(key, page.getId(), next.getId());
+			if (parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				// the tree grows by one level
+				BTreeInternalPage root = (BTreeInternalPage) f.getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+				root.insertEntry(entry);
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.getPage(tid, dirtypages, rootPtrId,
+						Permissions.READ_WRITE);
+				rootPtr.setRootId(root.getId());
+				page.setParentId(root.getId());
+				next.setParentId(root.getId());
+				return;
+			}
+
+			BTreeInternalPage parent = (BTreeInternalPage) f.getPage(tid, dirtypages, parentId,
+					Permissions.READ_WRITE);
+			// the parent keeps one entry less when the level continues in a new page, and
+			// must stay at least half full, which hasRoomFor() allows for
+			if (parent.hasRoomFor(key, fillFactor)) {
+				parent.insertEntry(entry);
+				next.setParentId(parentId);
+				return;
+			}
+
+			// an internal page needs two children, so page moves to the new parent
+			BTreeEntry lastEntry = parent.reverseIterator().next();
+			parent.deleteKeyAndRightChild(lastEntry);
+			BTreeInternalPage nextParent = (BTreeInternalPage) f.getEmptyPage(tid, dirtypages,
+					BTreePageId.INTERNAL);
+			nextParent.insertEntry(entry);
+			page.setParentId(nextParent.getId());
+			next.setParentId(nextParent.getId());
+			appendChild(dirtypages, parent, lastEntry.getKey(), nextParent);
+		}
+
+		/**
+		 * Redistributes or merges the pages on the right edge that are less than half full
+		 * with their left siblings, from the leaf level up. Appending leaves all pages full
+		 * up to the fill factor except the last one of every level, which may hold as little
+		 * as a single tuple or entry, so unlike after a deletion, the two pages may fit into
+		 * one even if the left sibling is more than half full.
+		 */
+		private void balanceRightEdge() throws DbException, IOException, TransactionAbortedException {
+			for (int level = 0; ; level++) {
+				Map<PageId, Page> dirtypages = new HashMap<>();
+				List<BTreePageId> edge = rightEdge();
+				// the root may be less than half full
+				if (level >= edge.size() - 1) {
+					return;
+				}
+				BTreeInternalPage parent = (BTreeInternalPage) f.getPage(tid, dirtypages,
+						edge.get(edge.size() - 2 - level), Permissions.READ_WRITE);
+				BTreeEntry entry = parent.reverseIterator().next();
+				BTreePage page = (BTreePage) f.getPage(tid, dirtypages, entry.getRightChild(),
+						Permissions.READ_WRITE);
+				BTreePage sibling = (BTreePage) f.getPage(tid, dirtypages, entry.getLeftChild(),
+						Permissions.READ_WRITE);
+				f.startStructureModification();
+				try {
+					balance(dirtypages, page, sibling, parent, entry);
+				} finally {
+					f.endStructureModification();
+				}
+				bp.cacheDirtyPages(tid, dirtypages.values());
+				pagesDirtied(dirtypages.size());
+			}
+		}
+
+		/**
+		 * Redistributes or merges a page on the right edge with its left sibling if it is
+		 * less than half full.
+		 */
+		private void balance(Map<PageId, Page> dirtypages, BTreePage page, BTreePage sibling,
+				BTreeInternalPage parent, BTreeEntry entry) throws DbException, IOException, TransactionAbortedException {
+			if (page instanceof BTreeLeafPage) {
+				BTreeLeafPage leaf = (BTreeLeafPage) page;
+				BTreeLeafPage left = (BTreeLeafPage) sibling;
+				int maxTuples = leaf.getMaxTuples();
+				if (leaf.getNumTuples() < maxTuples / 2) {
+					if (left.getNumTuples() + leaf.getNumTuples() <= maxTuples) {
+						f.mergeLeafPages(tid, dirtypages, left, leaf, parent, entry);
+					} else {
+						f.stealFromLeafPage(leaf, left, parent, entry, false);
+					}
+				}
+			} else {
+				BTreeInternalPage internal = (BTreeInternalPage) page;
+				BTreeInternalPage left = (BTreeInternalPage) sibling;
+				int maxEntries = internal.getMaxEntries();
+				if (internal.isUnderfull()) {
+					// merging pulls the key of the parent entry down
+					boolean fits = internal.isCompressed() ? left.canMergeWith(internal, entry.getKey())
+							: left.getNumEntries() + internal.getNumEntries() + 1 <= maxEntries;
+					if (fits) {
+						f.mergeInternalPages(tid, dirtypages, left, internal, parent, entry);
+					} else {
+						f.stealFromLeftInternalPage(tid, dirtypages, internal, left, parent, entry);
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return the ids of the pages on the right edge of the tree, from the root page
+		 * to the right-most leaf page
+		 */
+		private LinkedList<BTreePageId> rightEdge() throws DbException, TransactionAbortedException {
+			LinkedList<BTreePageId> edge = new LinkedList<>();
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY);
+			BTreePageId pid = rootPtr.getRootId();
+			edge.add(pid);
+			while (pid.pgcateg() == BTreePageId.INTERNAL) {
+				pid = lastChild((BTreeInternalPage) bp.getPage(tid, pid, Permissions.READ_ONLY));
+				edge.add(pid);
+			}
+			return edge;
+		}
+
+		private BTreePageId lastChild(BTreeInternalPage page) throws DbException {
+			Iterator<BTreeEntry> it = page.reverseIterator();
+			if (!it.hasNext()) {
+				throw new DbException("No more entries.");
+			}
+			return it.next().getRightChild();
+		}
+
+		/**
+		 * Counts pages dirtied by the load, and writes the pages dirtied by the transaction
+		 * to disk once they take up a quarter of the buffer pool.
+		 * @param n - the number of pages dirtied
+		 */
+		private void pagesDirtied(int n) throws IOException {
+			dirtied += n;
+			if (dirtied >= Math.max(1, bp.getNumPages() / 4)) {
+				bp.flushPages(tid);
+				dirtied = 0;
+			}
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -29,9 +31,21 @@ import simpledb.transaction.TransactionId;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final FileHandle handle;
 	private final TupleDesc td;
 	private final int tableid ;
-	private final int keyField;
+	private final int keyField; // the first of keyFields
+	private final int[] keyFields;
+	// whether internal pages compress their keys
+	private final boolean compressesKeys;
+
+	// the structure modifications (splits, merges, redistributions and new roots) started
+	// and finished on this tree, which optimistic descents are validated against
+	private final AtomicLong smoStarted = new AtomicLong();
+	private final AtomicLong smoEnded = new AtomicLong();
+
+	// optimistic descents tried before a descent couples its latches
+	private static final int OPTIMISTIC_DESCENTS = 100;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -42,10 +56,32 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] {key}, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields. Its keys are CompositeFields
+	 * of the key fields, which compare field by field, so the tree is sorted on the
+	 * first key field, then on the second, and so on. An IndexPredicate on a prefix of
+	 * the key fields, or on the value of the first key field, matches the tuples whose
+	 * leading key fields compare to it.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in key order
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		if (keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
+		this.handle = new FileHandle(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = td;
+		this.compressesKeys = BTreeKeyCompression.compresses(td, keyFields);
 	}
 
 	/**
@@ -87,49 +123,66 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
+				readFully(pageBuf, 0);
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else {
+				byte[] pageBuf = new byte[BufferPool.getPageSize()];
+				readFully(pageBuf, pageOffset(id.getPageNumber()));
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return createPage(id, pageBuf);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Creates a page of this file from its data. The page class follows from the category
+	 * of the page id, and B+ tree pages need the key field to be created.
+	 */
+	public Page createPage(String pageClassName, PageId pid, byte[] data) throws IOException {
+		return createPage((BTreePageId) pid, data);
+	}
+
+	private Page createPage(BTreePageId id, byte[] data) throws IOException {
+		if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, data);
+		} else if (id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, data, keyFields);
+		} else if (id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, data, keyFields);
+		} else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, data);
+		}
+	}
+
+	/**
+	 * Read exactly pageBuf.length bytes at the given offset of the file
+	 * 
+	 * @throws IllegalArgumentException if the file is too short
+	 */
+	private void readFully(byte[] pageBuf, long offset) throws IOException {
+		int retval = handle.read(ByteBuffer.wrap(pageBuf), offset);
+		if (retval == 0) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		if (retval < pageBuf.length) {
+			throw new IllegalArgumentException("Unable to read "
+					+ pageBuf.length + " bytes from BTreeFile");
+		}
+	}
+
+	/**
+	 * Returns the offset of the page with the given number in the file. Page 0
+	 * is the root pointer page, which is smaller than the other pages.
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -141,17 +194,37 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			handle.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			handle.write(data, pageOffset(page.getId().getPageNumber()));
 		}
 	}
+
+	/**
+	 * Release the file handle of this BTreeFile; it is reopened on next use
+	 */
+	public void close() {
+		handle.close();
+	}
+
+	/**
+	 * Switch this B+ tree into or out of memory-mapped mode. In that mode the
+	 * tree is read-only: pages are read from a mapping of the file, and inserts
+	 * and deletes fail with a DbException. Reads still go through the
+	 * BufferPool and take the usual locks.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		handle.setMemoryMapped(memoryMapped);
+	}
+
+	/**
+	 * Returns true if this B+ tree is in memory-mapped read-only mode
+	 */
+	public boolean isMemoryMapped() {
+		return handle.isMemoryMapped();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
@@ -162,12 +235,40 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, or the first of
+	 * them if it is keyed on several fields
 	 */
 	public int keyField() {
 		return keyField;
 	}
 
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, in key order
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple in this B+ tree: the value of the key field, or a
+	 * CompositeField of the key fields if the tree is keyed on several fields
+	 */
+	public Field getKey(Tuple t) {
+		return BTreePage.getKey(t, keyFields);
+	}
+
+	/**
+	 * Returns the key of a parent entry between two adjacent leaf pages: the smallest key
+	 * of the right page, or the shortest key between the pages if the keys of internal
+	 * pages are compressed.
+	 * @param leftMax - the largest key of the left page
+	 * @param rightMin - the smallest key of the right page
+	 * @see BTreeKeyCompression#separator(Field, Field)
+	 */
+	Field separator(Field leftMax, Field rightMin) {
+		return compressesKeys ? BTreeKeyCompression.separator(leftMax, rightMin) : rightMin;
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -194,18 +295,11 @@ public class BTreeFile implements DbFile {
 		}
 		else if (pid.pgcateg() == BTreePageId.INTERNAL){
 			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-			Iterator<BTreeEntry> iter = page.iterator();
-			BTreeEntry entry = null;
-			while (iter.hasNext()) {
-				entry = iter.next();
-				if (f == null || entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-					return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-				}
-			}
-			if (entry == null) {
+			BTreePageId child = page.findChild(f);
+			if (child == null) {
 				throw new DbException("No more entries.");
 			}
-			return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+			return findLeafPage(tid, dirtypages, child, perm, f);
 		}
 		// HeaderPage and RootPtrPage are special pages used for managing B+Tree files.
 		else{
@@ -230,6 +324,102 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
 	}
 
+	/**
+	 * Finds and locks the left-most leaf page possibly containing the key field f, starting
+	 * at the root pointer page. Unlike findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field),
+	 * only the leaf page stays locked until the transaction completes. The root pointer page and
+	 * the internal pages are latched: locked READ_ONLY just long enough to read the id of the
+	 * next page, then released, unless the transaction held their locks already.
+	 * 
+	 * A descent first tries to release each latch before it locks the next page, so it never
+	 * waits for a lock while holding one. The next page may then be split, merged or freed before
+	 * it is locked, so such a descent only starts while no structure modification is running on
+	 * this tree and starts over if one began before the page was locked. After
+	 * OPTIMISTIC_DESCENTS attempts, the descent couples its latches instead: it releases each
+	 * one only after it has locked the next page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f, or null if the tree
+	 * has no root page yet
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		for (int attempt = 0; ; attempt++) {
+			boolean optimistic = attempt < OPTIMISTIC_DESCENTS;
+			long ended = smoEnded.get();
+			long started = smoStarted.get();
+			if (optimistic && started != ended) {
+				// a structure modification may be halfway through the path
+				Thread.yield();
+				continue;
+			}
+
+			BTreePageId latched = BTreeRootPtrPage.getId(tableid);
+			boolean latchHeld = bp.holdsLock(tid, latched);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, latched, Permissions.READ_ONLY);
+			BTreePageId pid = rootPtr.getRootId();
+			if (pid == null) {
+				if (!latchHeld)
+					bp.unsafeReleasePage(tid, latched);
+				return null;
+			}
+			while (true) {
+				if (optimistic && !latchHeld)
+					bp.unsafeReleasePage(tid, latched);
+				boolean held = bp.holdsLock(tid, pid);
+				Permissions p = pid.pgcateg() == BTreePageId.LEAF ? perm : Permissions.READ_ONLY;
+				bp.lockPage(tid, pid, p);
+				if (!optimistic && !latchHeld)
+					bp.unsafeReleasePage(tid, latched);
+				if (optimistic && smoStarted.get() != started) {
+					// the page may not be where the latched page said it was anymore
+					if (!held)
+						bp.unsafeReleasePage(tid, pid);
+					break;
+				}
+
+				Page page = getPage(tid, dirtypages, pid, p);
+				if (pid.pgcateg() == BTreePageId.LEAF) {
+					return (BTreeLeafPage) page;
+				}
+				if (pid.pgcateg() != BTreePageId.INTERNAL) {
+					throw new DbException("Unsupported, invalid page type.");
+				}
+				latched = pid;
+				latchHeld = held;
+				pid = ((BTreeInternalPage) page).findChild(f);
+				if (pid == null) {
+					if (!latchHeld)
+						bp.unsafeReleasePage(tid, latched);
+					throw new DbException("No more entries.");
+				}
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Called before a structure modification changes the tree, that is, before a split,
+	 * merge or redistribution of pages or a change of the root. Optimistic descents that
+	 * overlap with it start over.
+	 * @see #findLeafPage(TransactionId, Map, Permissions, Field)
+	 */
+	void startStructureModification() {
+		smoStarted.incrementAndGet();
+	}
+
+	/**
+	 * Called after a structure modification has changed the tree. Its pages stay locked by
+	 * its transaction, so later descents wait for them until the transaction completes.
+	 */
+	void endStructureModification() {
+		smoEnded.incrementAndGet();
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -286,13 +476,14 @@ public class BTreeFile implements DbFile {
 			newPage.setRightSiblingId(null);
 		}
 
-		BTreeEntry bTreeEntry = new BTreeEntry(newPage.iterator().next().getField(keyField), page.getId(), newPage.getId());
-		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), newPage.iterator().next().getField(keyField));
+		Field key = separator(getKey(page.reverseIterator().next()), getKey(newPage.iterator().next()));
+		BTreeEntry bTreeEntry = new BTreeEntry(key, page.getId(), newPage.getId());
+		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
 		parentPage.insertEntry(bTreeEntry);
 		updateParentPointers(tid, dirtypages, parentPage);
 
 		BTreeLeafPage result;
-		if (field.compare(Op.GREATER_THAN_OR_EQ, newPage.iterator().next().getField(keyField))){
+		if (field.compare(Op.GREATER_THAN_OR_EQ, key)){
 			result = newPage;
 		}
 		else {
@@ -338,8 +529,8 @@ public class BTreeFile implements DbFile {
 		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 		Iterator<BTreeEntry> entries = page.reverseIterator();
 
-		int numbers = page.getNumEntries();
-		for (int i=0; i < numbers / 2; ++i) {
+		int numbers = page.getSplitCount();
+		for (int i=0; i < numbers; ++i) {
 			BTreeEntry bTreeEntry = entries.next();
 			page.deleteKeyAndRightChild(bTreeEntry);
 			newPage.insertEntry(bTreeEntry);
@@ -375,7 +566,7 @@ public class BTreeFile implements DbFile {
 	 * @param parentId - the id of the parent. May be an internal page or the RootPtr page
 	 * @param field - the key of the entry which will be inserted. Needed in case the parent must be split
 	 * to accommodate the new entry
-	 * @return the parent page, guaranteed to have at least one empty slot
+	 * @return the parent page, guaranteed to have room for an entry with the key
 	 * @see #splitInternalPage(TransactionId, Map, BTreeInternalPage, Field)
 	 * 
 	 * @throws DbException
@@ -409,7 +600,7 @@ public class BTreeFile implements DbFile {
 		}
 
 		// split the parent if needed
-		if(parent.getNumEmptySlots() == 0) {
+		if(!parent.hasRoomFor(field)) {
 			parent = splitInternalPage(tid, dirtypages, parent, field);
 		}
 
@@ -510,23 +701,40 @@ public class BTreeFile implements DbFile {
 	 */
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
+		if (isMemoryMapped()) {
+			throw new DbException("table " + tableid + " is memory-mapped read-only");
+		}
 		Map<PageId, Page> dirtypages = new HashMap<>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		createRootPtrPage();
+
+		// find and lock the left-most leaf page corresponding to the key field; only
+		// the leaf page stays locked
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, getKey(t));
+
+		if(leafPage == null) { // the root has just been created, so set the root pointer to point to it
+			startStructureModification();
+			try {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				BTreePageId rootId = rootPtr.getRootId();
+				if(rootId == null) {
+					rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+					rootPtr.setRootId(rootId);
+				}
+				leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, getKey(t));
+			} finally {
+				endStructureModification();
+			}
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// split the leaf page if there are no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			startStructureModification();
+			try {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, getKey(t));
+			} finally {
+				endStructureModification();
+			}
 		}
 
 		// insert the tuple into the leaf page
@@ -662,17 +870,31 @@ public class BTreeFile implements DbFile {
 			tuples = sibling.reverseIterator();
 		}
 
-		Tuple t = null;
 		int steal = (sibling.getNumTuples() - page.getNumTuples()) / 2;
+		List<Tuple> stolen = new ArrayList<>();
 		for (int i=0; i < steal; i++) {
-			t = tuples.next();
+			stolen.add(tuples.next());
+		}
+		if (stolen.isEmpty()) {
+			return;
+		}
+
+		Field key = getKey(stolen.get(steal - 1));
+		if (compressesKeys) {
+			Field next = getKey(tuples.next());
+			key = isRightSibling ? separator(key, next) : separator(next, key);
+		}
+		// a longer compressed key may not fit into the parent; the page then stays
+		// underfull until its sibling can be merged with it
+		if (!parent.hasRoomFor(entry, key)) {
+			return;
+		}
+		for (Tuple t : stolen) {
 			sibling.deleteTuple(t);
 			page.insertTuple(t);
 		}
-		if (t!= null ){
-			entry.setKey(t.getField(keyField));
-			parent.updateEntry(entry);
-		}
+		entry.setKey(key);
+		parent.updateEntry(entry);
 
 	}
 
@@ -703,12 +925,11 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.canMergeWith(page, leftEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -719,7 +940,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.canMergeWith(page, rightEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -753,8 +974,12 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		Iterator<BTreeEntry> bTreeEntryIterator = leftSibling.reverseIterator();
-		int steal = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		List<BTreeEntry> entries = entriesToSteal(leftSibling, page, parent, parentEntry, false);
+		if (entries.isEmpty()) {
+			return;
+		}
+		Iterator<BTreeEntry> bTreeEntryIterator = entries.iterator();
+		int steal = entries.size();
 
 		BTreeEntry bTreeEntry = bTreeEntryIterator.next();
 
@@ -802,8 +1027,12 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		Iterator<BTreeEntry> bTreeEntryIterator = rightSibling.iterator();
-		int steal = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		List<BTreeEntry> entries = entriesToSteal(rightSibling, page, parent, parentEntry, true);
+		if (entries.isEmpty()) {
+			return;
+		}
+		Iterator<BTreeEntry> bTreeEntryIterator = entries.iterator();
+		int steal = entries.size();
 
 		BTreeEntry bTreeEntry = bTreeEntryIterator.next();
 
@@ -827,6 +1056,33 @@ public class BTreeFile implements DbFile {
 
 	}
 	
+	/**
+	 * Finds the entries an internal page takes from a sibling, nearest to the page first.
+	 * The key of the last one is pushed up to the parent entry; if the keys are compressed
+	 * and the parent has no room for it, fewer entries are taken, or none, in which case
+	 * the page stays underfull until its sibling can be merged with it.
+	 * 
+	 * @param sibling - the sibling which has entries to spare
+	 * @param page - the internal page which is less than half full
+	 * @param parent - the parent of the two internal pages
+	 * @param parentEntry - the entry in the parent pointing to the two internal pages
+	 * @param isRightSibling - whether the sibling is a right-sibling
+	 * @return the entries to take
+	 */
+	private List<BTreeEntry> entriesToSteal(BTreeInternalPage sibling, BTreeInternalPage page,
+			BTreeInternalPage parent, BTreeEntry parentEntry, boolean isRightSibling) {
+		Iterator<BTreeEntry> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		int steal = sibling.getNumEntriesToSteal(page, isRightSibling);
+		List<BTreeEntry> entries = new ArrayList<>();
+		for (int i=0; i < steal; i++) {
+			entries.add(it.next());
+		}
+		while (!entries.isEmpty() && !parent.hasRoomFor(parentEntry, entries.get(entries.size() - 1).getKey())) {
+			entries.remove(entries.size() - 1);
+		}
+		return entries;
+	}
+
 	/**
 	 * Merge two leaf pages by moving all tuples from the right page to the left page. 
 	 * Delete the corresponding key and right child pointer from the parent, and recursively 
@@ -957,8 +1213,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -973,7 +1228,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isUnderfull()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -991,6 +1246,9 @@ public class BTreeFile implements DbFile {
 	 */
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
+		if (isMemoryMapped()) {
+			throw new DbException("table " + tableid + " is memory-mapped read-only");
+		}
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
@@ -1002,7 +1260,12 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			startStructureModification();
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			} finally {
+				endStructureModification();
+			}
 		}
 
         return new ArrayList<>(dirtypages.values());
@@ -1020,23 +1283,26 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createRootPtrPage();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 * @throws IOException
+	 */
+	private synchronized void createRootPtrPage() throws IOException {
+		if(f.length() == 0) {
+			// create the root pointer page and the root page
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			handle.write(emptyRootPtrData, 0);
+			handle.write(emptyLeafData, emptyRootPtrData.length);
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1085,11 +1351,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				handle.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1113,17 +1376,14 @@ public class BTreeFile implements DbFile {
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
+	Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		handle.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1271,13 +1531,29 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		BTreeLeafPage leaf = f.findLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY, null);
+		if (leaf == null)
+			return;
+		curp = pin(leaf.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the given leaf page and release the pin on the current one, so the
+	 * page being read cannot be evicted while tuples of it are handed out
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+		unpin();
+		return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	private void unpin() {
+		if (curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+			curp = null;
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1292,11 +1568,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
-				curp = null;
+				unpin();
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1321,8 +1596,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		unpin();
 		it = null;
-		curp = null;
 	}
 }
 
@@ -1356,17 +1631,35 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+		boolean seek = ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ;
+		BTreeLeafPage leaf = f.findLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY,
+				seek ? ipred.getField() : null);
+		if (leaf == null)
+			return;
+		curp = pin(leaf.getId());
+		if(seek) {
+			it = curp.iterator(ipred.getField(), ipred.getOp() != Op.GREATER_THAN);
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			it = curp.iterator();
+		}
+	}
+
+	/**
+	 * Pin the given leaf page and release the pin on the current one, so the
+	 * page being read cannot be evicted while tuples of it are handed out
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+		unpin();
+		return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	private void unpin() {
+		if (curp != null) {
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+			curp = null;
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1382,7 +1675,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				if (f.getKey(t).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1391,7 +1684,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						f.getKey(t).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1404,8 +1697,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1426,6 +1718,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		unpin();
 		it = null;
 	}
 }
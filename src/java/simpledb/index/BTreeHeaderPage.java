@@ -23,6 +23,8 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	// LSN of the last logged change, not stored on disk
+	private volatile long pageLSN;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -273,6 +275,20 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	/**
+	 * Returns the LSN of the last log record of a change to this page
+	 */
+	public long getPageLSN() {
+		return this.pageLSN;
+	}
+
+	/**
+	 * Records the LSN of a log record of a change to this page
+	 */
+	public void setPageLSN(long lsn) {
+		this.pageLSN = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
@@ -2,6 +2,7 @@ package simpledb.index;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import simpledb.common.Catalog;
 import simpledb.common.Database;
@@ -17,16 +18,33 @@ import simpledb.storage.RecordId;
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The keys of a B+ tree keyed on a string field are compressed: rather than in slots
+ * of the size of the largest key, entries are stored one after another, each key
+ * relative to the one before it. How many entries fit on such a page depends on the
+ * length of their keys, so BTreeFile asks the page whether it has room for a key, is
+ * underfull or can be merged, instead of counting empty slots.
  *
  * @see BTreeFile
  * @see BufferPool
+ * @see BTreeKeyCompression
  *
  */
 public class BTreeInternalPage extends BTreePage {
+	// the parent pointer, child page category, number of entries and the left-most
+	// child pointer of a page with compressed keys
+	private static final int COMPRESSED_HEADER_SIZE = 2 * INDEX_SIZE + 1 + BTreeKeyCompression.LENGTH_SIZE;
+	// the counts of shared and remaining key bytes and the child pointer of an entry
+	private static final int COMPRESSED_ENTRY_SIZE = 2 * BTreeKeyCompression.LENGTH_SIZE + INDEX_SIZE;
+
 	private final byte[] header;
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
+
+	// the encoded keys of a page with compressed keys, null otherwise
+	private final byte[][] keyBytes;
+	private final Type[] keyTypes;
 	
 	private int childCategory; // either leaf or internal
 
@@ -43,7 +61,7 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert !checkOccupancy || depth <= 0 || !isUnderfull();
 	}
 	
 	/**
@@ -56,12 +74,17 @@ public class BTreeInternalPage extends BTreePage {
 	 *  Specifically, the number of entries is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
 	 * <p> where entry size is the size of entries in this index node
-	 * (key + child pointer), which can be determined via the key field and 
+	 * (key + child pointer), which can be determined via the key fields and 
 	 * {@link Catalog#getTupleDesc}.
 	 * The number of 8-bit header words is equal to:
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * A page with compressed keys has no header. After the parent pointer and the
+	 * category of the child pages, it holds the number of entries, the left-most child
+	 * pointer, and then, for each entry, the number of leading key bytes it shares with
+	 * the key of the previous entry, the number of remaining key bytes, those bytes,
+	 * and the right child pointer.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -71,7 +94,27 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreeInternalPage of an index keyed on several fields from a set of
+	 * bytes of data read from disk. Its keys are CompositeFields of the key fields.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in key order
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		if (BTreeKeyCompression.compresses(td, keyFields)) {
+			keyTypes = new Type[keyFields.length];
+			for (int i=0; i<keyFields.length; i++)
+				keyTypes[i] = td.getFieldType(keyFields[i]);
+		}
+		else {
+			keyTypes = null;
+		}
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -88,10 +131,19 @@ public class BTreeInternalPage extends BTreePage {
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
+		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (isCompressed()) {
+			keyBytes = new byte[numSlots][];
+			readCompressedEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+		keyBytes = null;
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
-		keys = new Field[numSlots];
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -103,7 +155,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -116,11 +167,47 @@ public class BTreeInternalPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	/**
+	 * Read the entries of a page with compressed keys into the first slots.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		int n = dis.readUnsignedShort();
+		int child = dis.readInt();
+		if (n == 0)
+			return;
+		children[0] = child;
+		markSlotUsed(0, true);
+		byte[] prev = new byte[0];
+		for (int i=1; i<=n; i++) {
+			int shared = dis.readUnsignedShort();
+			byte[] bytes = new byte[shared + dis.readUnsignedShort()];
+			System.arraycopy(prev, 0, bytes, 0, shared);
+			dis.readFully(bytes, shared, bytes.length - shared);
+			keyBytes[i] = bytes;
+			keys[i] = BTreeKeyCompression.decode(bytes, keyTypes);
+			children[i] = dis.readInt();
+			markSlotUsed(i, true);
+			prev = bytes;
+		}
+	}
+
+	/**
+	 * @return true if the keys on this page are compressed
+	 * @see BTreeKeyCompression#compresses
+	 */
+	boolean isCompressed() {
+		return keyTypes != null;
+	}
+
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * For a page with compressed keys, this is the number of entries with keys equal
+	 * to the previous ones that fit; fewer entries with longer keys do.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if (isCompressed())
+			return (BufferPool.getPageSize() - COMPRESSED_HEADER_SIZE) / COMPRESSED_ENTRY_SIZE;
+		int keySize = getKeySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -149,7 +236,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -172,7 +259,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -185,7 +272,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -236,6 +323,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		if (isCompressed())
+			return getCompressedPageData();
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -273,7 +362,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -320,7 +409,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				getKeySize() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -337,6 +426,223 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Generates the data of a page with compressed keys, with its entries in the first
+	 * slots.
+	 */
+	private byte[] getCompressedPageData() {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.putInt(parent);
+		buf.put((byte) childCategory);
+		buf.putShort((short) getNumEntries());
+		buf.putInt(isSlotUsed(0) ? children[0] : 0);
+		byte[] prev = new byte[0];
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			byte[] bytes = keyBytes[i];
+			int shared = BTreeKeyCompression.commonPrefix(prev, bytes);
+			buf.putShort((short) shared);
+			buf.putShort((short) (bytes.length - shared));
+			buf.put(bytes, shared, bytes.length - shared);
+			buf.putInt(children[i]);
+			prev = bytes;
+		}
+		return data;
+	}
+
+	/**
+	 * Computes how many bytes the entries of a page with compressed keys take with a
+	 * key added or replaced.
+	 * @param slot - the slot of the key to replace, or -1 to add the key
+	 * @param key - the key to add or replace the key in slot with, or null for neither
+	 * @return the number of bytes after the header
+	 */
+	private int getDataSize(int slot, Field key) {
+		byte[] added = key == null ? null : BTreeKeyCompression.encode(key);
+		byte[] prev = new byte[0];
+		int size = 0;
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			byte[] bytes = keyBytes[i];
+			if (added != null && slot == -1 && keys[i].compare(Op.GREATER_THAN, key)) {
+				// the added key goes before this one
+				size += COMPRESSED_ENTRY_SIZE + added.length - BTreeKeyCompression.commonPrefix(prev, added);
+				prev = added;
+				added = null;
+			}
+			else if (i == slot) {
+				bytes = added;
+			}
+			size += COMPRESSED_ENTRY_SIZE + bytes.length - BTreeKeyCompression.commonPrefix(prev, bytes);
+			prev = bytes;
+		}
+		if (added != null && slot == -1)
+			size += COMPRESSED_ENTRY_SIZE + added.length - BTreeKeyCompression.commonPrefix(prev, added);
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes the entries of a page with compressed keys take
+	 */
+	private int getDataSize() {
+		return getDataSize(-1, null);
+	}
+
+	/**
+	 * @return the number of bytes available for the entries of a page with compressed keys
+	 */
+	private static int getCapacity() {
+		return BufferPool.getPageSize() - COMPRESSED_HEADER_SIZE;
+	}
+
+	/**
+	 * @return the largest number of bytes an entry with a compressed key takes on its own
+	 */
+	private int getMaxEntrySize() {
+		return COMPRESSED_ENTRY_SIZE + BTreeKeyCompression.maxEncodedSize(td, keyFields);
+	}
+
+	/**
+	 * @return true if an entry with the given key can be inserted into this page
+	 */
+	public boolean hasRoomFor(Field key) {
+		return hasRoomFor(key, 1.0);
+	}
+
+	/**
+	 * Decides whether an entry with the given key can be inserted into this page while
+	 * keeping the page filled up to the given fraction of its capacity at most. Pages
+	 * are always allowed to fill up to more than half, so that they are not underfull
+	 * after giving up their last entry.
+	 * @param key - the key of the entry
+	 * @param fillFactor - the fraction, between 0.5 and 1
+	 * @return true if the entry can be inserted
+	 */
+	public boolean hasRoomFor(Field key, double fillFactor) {
+		if (getNumEmptySlots() == 0)
+			return false;
+		if (isCompressed()) {
+			int capacity = getCapacity();
+			int limit = Math.min(capacity, Math.max(capacity / 2 + getMaxEntrySize(), (int) (fillFactor * capacity)));
+			return getDataSize(-1, key) <= limit;
+		}
+		int maxEntries = getMaxEntries();
+		int capacity = Math.min(maxEntries, Math.max(maxEntries / 2 + 1, (int) (fillFactor * maxEntries)));
+		return getNumEntries() < capacity;
+	}
+
+	/**
+	 * @return true if the key of the given entry on this page can be replaced with the
+	 * given key. Compressed keys take up more room if they are longer or share less with
+	 * their neighbours, so the page may not have room for it.
+	 */
+	public boolean hasRoomFor(BTreeEntry e, Field key) {
+		if (!isCompressed())
+			return true;
+		return getDataSize(e.getRecordId().getTupleNumber(), key) <= getCapacity();
+	}
+
+	/**
+	 * Returns true if this page is less than half full, and should take entries from a
+	 * sibling or be merged with it. A page with compressed keys leaves a margin of a
+	 * few of the largest entries, since the halves of a split page differ by up to one
+	 * entry and a split or redistribution moves the entry between them to the parent.
+	 */
+	public boolean isUnderfull() {
+		if (isCompressed())
+			return getDataSize() < getCapacity() / 2 - 3 * getMaxEntrySize();
+		int maxEmptySlots = getMaxEntries() - getMaxEntries()/2; // ceiling
+		return getNumEmptySlots() > maxEmptySlots;
+	}
+
+	/**
+	 * Decides whether an underfull sibling should be merged with this page rather than
+	 * take entries from it. Pages with fixed-size keys are merged if this page is at
+	 * minimum occupancy, pages with compressed keys if their entries and the key of the
+	 * parent entry between them fit into one page.
+	 * @param sibling - the underfull left or right sibling of this page
+	 * @param key - the key of the parent entry between the two pages
+	 * @return true if the pages should be merged
+	 */
+	public boolean canMergeWith(BTreeInternalPage sibling, Field key) {
+		if (!isCompressed()) {
+			int maxEmptySlots = getMaxEntries() - getMaxEntries()/2; // ceiling
+			return getNumEmptySlots() >= maxEmptySlots;
+		}
+		// the first key of the right page shares nothing on its own page, so it takes up
+		// at most as much after the merge
+		int size = getDataSize() + sibling.getDataSize() + COMPRESSED_ENTRY_SIZE
+				+ BTreeKeyCompression.encode(key).length;
+		return getNumEntries() + sibling.getNumEntries() + 1 <= getMaxEntries() && size <= getCapacity();
+	}
+
+	/**
+	 * Computes how many entries an underfull page should take from this sibling to even
+	 * out their entries, or, with compressed keys, the bytes of their entries.
+	 * @param page - the underfull page
+	 * @param isRightSibling - whether this page is the right sibling of the page
+	 * @return the number of entries to move
+	 */
+	public int getNumEntriesToSteal(BTreeInternalPage page, boolean isRightSibling) {
+		if (!isCompressed())
+			return (getNumEntries() - page.getNumEntries()) / 2;
+		int pageSize = page.getDataSize();
+		int siblingSize = getDataSize();
+		int steal = 0;
+		Iterator<BTreeEntry> it = isRightSibling ? iterator() : reverseIterator();
+		while (pageSize < siblingSize && steal < getNumEntries() - 1) {
+			int size = COMPRESSED_ENTRY_SIZE + BTreeKeyCompression.encode(it.next().getKey()).length;
+			pageSize += size;
+			siblingSize -= size;
+			steal++;
+		}
+		return Math.max(1, steal);
+	}
+
+	/**
+	 * Computes how many entries to move to a new right sibling when this page is split;
+	 * the entry before them is pushed up to the parent. With fixed-size keys, that is
+	 * half of the entries. With compressed keys, the entry pushed up is the one with the
+	 * shortest key among those near the middle of the page by bytes, which keeps the
+	 * parent small.
+	 * @return the number of entries to move
+	 */
+	public int getSplitCount() {
+		int n = getNumEntries();
+		if (!isCompressed())
+			return n / 2;
+		// the sizes of the entries on the page, in order
+		int[] sizes = new int[n];
+		int[] lengths = new int[n];
+		int total = 0;
+		byte[] prev = new byte[0];
+		int e = 0;
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			sizes[e] = COMPRESSED_ENTRY_SIZE + keyBytes[i].length - BTreeKeyCompression.commonPrefix(prev, keyBytes[i]);
+			lengths[e] = keyBytes[i].length;
+			total += sizes[e++];
+			prev = keyBytes[i];
+		}
+		// push up the shortest key among the entries that leave both halves within one
+		// of the largest entries of half the page
+		int window = getMaxEntrySize();
+		int best = -1;
+		int before = 0;
+		for (int m=0; m<n; m++) {
+			int after = total - before - sizes[m];
+			if (m > 0 && m < n - 1 && before >= total / 2 - window && after >= total / 2 - window
+					&& (best == -1 || lengths[m] < lengths[best]))
+				best = m;
+			before += sizes[m];
+		}
+		return best == -1 ? n / 2 : n - 1 - best;
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -413,6 +719,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (!hasRoomFor(e, e.getKey()))
+			throw new DbException("no room for the updated key " + e.getKey());
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -434,7 +742,16 @@ public class BTreeInternalPage extends BTreePage {
 			}	
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
+		setKey(rid.getTupleNumber(), e.getKey());
+	}
+
+	/**
+	 * Set the key in a slot, and its encoding if keys are compressed.
+	 */
+	private void setKey(int slot, Field key) {
+		keys[slot] = key;
+		if (isCompressed())
+			keyBytes[slot] = BTreeKeyCompression.encode(key);
 	}
 
 	/**
@@ -445,7 +762,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKey(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -460,11 +777,14 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if (isCompressed() && getDataSize(-1, e.getKey()) > getCapacity())
+			throw new DbException("called insertEntry on page with no room for the key " + e.getKey());
+
 		// if this is the first entry, add it and return
 		if(getNumEmptySlots() == getMaxEntries()) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
-			keys[1] = e.getKey();
+			setKey(1, e.getKey());
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
 			e.setRecordId(new RecordId(pid, 1));
@@ -544,7 +864,7 @@ public class BTreeInternalPage extends BTreePage {
 		// insert new entry into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
+		setKey(goodSlot, e.getKey());
 		children[goodSlot] = e.getRightChild().getPageNumber();
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
@@ -557,11 +877,68 @@ public class BTreeInternalPage extends BTreePage {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			keys[to] = keys[from];
+			if (isCompressed())
+				keyBytes[to] = keyBytes[from];
 			children[to] = children[from];
 			markSlotUsed(from, false);
 		}
 	}
 
+	/**
+	 * Finds the child to descend into when searching for the left-most page possibly
+	 * containing the given key: the left child of the first entry whose key is greater
+	 * than or equal to f, or the right child of the last entry if there is none. The
+	 * entry is found by binary search over the key slots; since empty slots may lie
+	 * between used ones, each probe moves forward to the next used slot.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		int lo = 1;
+		int hi = numSlots - 1;
+		int found = -1;
+		if (f == null) {
+			// the left child of the first entry
+			while (lo <= hi && !isSlotUsed(lo))
+				lo++;
+			found = lo <= hi ? lo : -1;
+		}
+		else {
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int m = mid;
+				while (m <= hi && !isSlotUsed(m))
+					m++;
+				if (m > hi) {
+					hi = mid - 1;
+				}
+				else if (keys[m].compare(Op.GREATER_THAN_OR_EQ, f)) {
+					found = m;
+					hi = mid - 1;
+				}
+				else {
+					lo = m + 1;
+				}
+			}
+		}
+		int child;
+		if (found == -1) {
+			// the right child of the last entry
+			child = numSlots - 1;
+			while (child > 0 && !isSlotUsed(child))
+				child--;
+			if (child == 0)
+				return null;
+		}
+		else {
+			// the left child of an entry is the child of the previous used slot
+			child = found - 1;
+			while (child > 0 && !isSlotUsed(child))
+				child--;
+		}
+		return new BTreePageId(pid.getTableId(), children[child], childCategory);
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
@@ -765,8 +1142,12 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the closest used slot before the key
+					while (curEntry > 0 && !p.isSlotUsed(curEntry)) {
+						--curEntry;
+					}
+					BTreePageId childId = p.getChildId(curEntry);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -0,0 +1,200 @@
+package simpledb.index;
+
+import java.util.Arrays;
+
+import simpledb.common.Type;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.TupleDesc;
+
+/**
+ * BTreeKeyCompression holds the key encoding of the internal pages of B+ trees keyed
+ * on string fields, whose fixed-size keys would leave room for only a few dozen
+ * entries per page.
+ * <p>
+ * Such a page stores each key as the number of leading bytes it shares with the key
+ * before it on the page and the remaining bytes (front compression). Since a page
+ * covers a narrow key range, neighbouring keys share most of their bytes. A key is
+ * encoded as the bytes of its fields one after another, a string as its characters
+ * and an integer as four bytes, followed by the two-byte lengths of its string fields,
+ * so keys with a common prefix of strings share their leading bytes.
+ * <p>
+ * The keys of internal pages only have to tell the keys of two children apart, so
+ * they are truncated to the shortest key between the children (suffix truncation).
+ */
+final class BTreeKeyCompression {
+
+	// the size of the length of a string field, and of the counts of shared and
+	// remaining bytes in front of a key on a page
+	static final int LENGTH_SIZE = 2;
+
+	private BTreeKeyCompression() {
+	}
+
+	/**
+	 * @return true if the keys of a B+ tree keyed on the given fields are compressed,
+	 * that is, if any key field is a string
+	 */
+	static boolean compresses(TupleDesc td, int[] keyFields) {
+		for (int f : keyFields) {
+			if (td.getFieldType(f) == Type.STRING_TYPE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the largest number of bytes a key of the given fields encodes to
+	 */
+	static int maxEncodedSize(TupleDesc td, int[] keyFields) {
+		int size = 0;
+		for (int f : keyFields) {
+			Type type = td.getFieldType(f);
+			size += type == Type.STRING_TYPE ? Type.STRING_LEN + LENGTH_SIZE : type.getLen();
+		}
+		return size;
+	}
+
+	private static Field[] fields(Field key) {
+		if (key instanceof CompositeField) {
+			CompositeField c = (CompositeField) key;
+			Field[] fields = new Field[c.numFields()];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = c.getField(i);
+			}
+			return fields;
+		}
+		return new Field[] {key};
+	}
+
+	/**
+	 * Encodes a key. Characters are written as their low byte, like
+	 * StringField.serialize() does.
+	 * @param key - the key, a single field or a CompositeField
+	 * @return the bytes of the key
+	 */
+	static byte[] encode(Field key) {
+		Field[] fields = fields(key);
+		int size = 0;
+		for (Field f : fields) {
+			size += f instanceof StringField
+					? ((StringField) f).getValue().length() + LENGTH_SIZE : Type.INT_TYPE.getLen();
+		}
+		byte[] bytes = new byte[size];
+		int pos = 0;
+		for (Field f : fields) {
+			if (f instanceof StringField) {
+				String s = ((StringField) f).getValue();
+				for (int i = 0; i < s.length(); i++) {
+					bytes[pos++] = (byte) s.charAt(i);
+				}
+			}
+			else {
+				int v = ((IntField) f).getValue();
+				bytes[pos++] = (byte) (v >>> 24);
+				bytes[pos++] = (byte) (v >>> 16);
+				bytes[pos++] = (byte) (v >>> 8);
+				bytes[pos++] = (byte) v;
+			}
+		}
+		for (Field f : fields) {
+			if (f instanceof StringField) {
+				int len = ((StringField) f).getValue().length();
+				bytes[pos++] = (byte) (len >>> 8);
+				bytes[pos++] = (byte) len;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Decodes a key written by encode().
+	 * @param bytes - the bytes of the key
+	 * @param types - the types of the key fields, in key order
+	 * @return the key, a CompositeField if there are several key fields
+	 */
+	static Field decode(byte[] bytes, Type[] types) {
+		int lengths = bytes.length;
+		for (Type type : types) {
+			if (type == Type.STRING_TYPE) {
+				lengths -= LENGTH_SIZE;
+			}
+		}
+		Field[] fields = new Field[types.length];
+		int pos = 0;
+		for (int i = 0; i < types.length; i++) {
+			if (types[i] == Type.STRING_TYPE) {
+				int len = ((bytes[lengths] & 0xFF) << 8) | (bytes[lengths + 1] & 0xFF);
+				lengths += LENGTH_SIZE;
+				char[] chars = new char[len];
+				for (int j = 0; j < len; j++) {
+					chars[j] = (char) (bytes[pos++] & 0xFF);
+				}
+				fields[i] = new StringField(new String(chars), Type.STRING_LEN);
+			}
+			else {
+				fields[i] = new IntField(((bytes[pos] & 0xFF) << 24) | ((bytes[pos + 1] & 0xFF) << 16)
+						| ((bytes[pos + 2] & 0xFF) << 8) | (bytes[pos + 3] & 0xFF));
+				pos += Type.INT_TYPE.getLen();
+			}
+		}
+		return fields.length == 1 ? fields[0] : new CompositeField(fields);
+	}
+
+	/**
+	 * @return the number of leading bytes a and b have in common
+	 */
+	static int commonPrefix(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < n && a[i] == b[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Find the shortest key s with leftMax &lt; s &lt;= rightMin, to separate the keys of
+	 * two pages. The first field in which the keys differ is truncated to the shortest
+	 * prefix of its value in rightMin that is greater than its value in leftMax, if it is
+	 * a string, and string fields after it are left empty.
+	 * @param leftMax - the largest key of the left page
+	 * @param rightMin - the smallest key of the right page
+	 * @return the separator, or rightMin if the keys are equal
+	 */
+	static Field separator(Field leftMax, Field rightMin) {
+		Field[] left = fields(leftMax);
+		Field[] right = fields(rightMin);
+		Field[] sep = right.clone();
+		int i = 0;
+		while (i < right.length && right[i].equals(left[i])) {
+			i++;
+		}
+		if (i == right.length) {
+			return rightMin;
+		}
+		if (right[i] instanceof StringField) {
+			String l = ((StringField) left[i]).getValue();
+			String r = ((StringField) right[i]).getValue();
+			int common = 0;
+			while (common < l.length() && common < r.length() && l.charAt(common) == r.charAt(common)) {
+				common++;
+			}
+			if (common + 1 < r.length()) {
+				sep[i] = new StringField(r.substring(0, common + 1), Type.STRING_LEN);
+			}
+		}
+		for (int j = i + 1; j < sep.length; j++) {
+			if (sep[j] instanceof StringField) {
+				sep[j] = new StringField("", Type.STRING_LEN);
+			}
+		}
+		if (Arrays.equals(sep, right)) {
+			return rightMin;
+		}
+		return sep.length == 1 ? sep[0] : new CompositeField(sep);
+	}
+}
@@ -27,15 +27,15 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
-	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+	public void checkRep(Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, getKey(t)));
+			prev = getKey(t);
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -66,7 +66,19 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreeLeafPage of an index keyed on several fields from a set of bytes
+	 * of data read from disk.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keys - the fields which the index is keyed on, in key order
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keys) throws IOException {
+		super(id, keys);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -140,7 +152,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -313,10 +325,13 @@ public class BTreeLeafPage extends BTreePage {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
-		// find the first empty slot 
+		// find the first empty slot, skipping header bytes of used slots
 		int emptySlot = -1;
 		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
+			if ((i & 7) == 0 && header[i >> 3] == (byte) 0xFF) {
+				i += 7;
+			}
+			else if (!isSlotUsed(i)) {
 				emptySlot = i;
 				break;
 			}
@@ -326,16 +341,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int lessOrEqKey = findSlot(getKey(t), false) - 1;
+		while (lessOrEqKey >= 0 && !isSlotUsed(lessOrEqKey))
+			lessOrEqKey--;
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -478,6 +486,52 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Binary search for the first used slot whose key is greater than (or, if inclusive,
+	 * greater than or equal to) the given key. The keys of the used slots are sorted, but
+	 * empty slots may lie between them, so each probe moves forward to the next used slot.
+	 * @param key - the key to search for
+	 * @param inclusive - whether a key equal to the given key matches
+	 * @return the slot, or the number of slots if no key matches
+	 */
+	int findSlot(Field key, boolean inclusive) {
+		Predicate.Op op = inclusive ? Predicate.Op.GREATER_THAN_OR_EQ : Predicate.Op.GREATER_THAN;
+		int lo = 0;
+		int hi = numSlots - 1;
+		int found = numSlots;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int m = nextUsedSlot(mid, hi);
+			if (m > hi) {
+				hi = mid - 1;
+			}
+			else if (getKey(tuples[m]).compare(op, key)) {
+				found = m;
+				hi = mid - 1;
+			}
+			else {
+				lo = m + 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the first used slot from slot i up to slot limit, or a slot after limit if
+	 * there is none. Header bytes of empty slots are skipped at once.
+	 */
+	private int nextUsedSlot(int i, int limit) {
+		while (i <= limit) {
+			if ((i & 7) == 0 && header[i >> 3] == 0)
+				i += 8;
+			else if (isSlotUsed(i))
+				return i;
+			else
+				i++;
+		}
+		return i;
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -486,6 +540,16 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param key - the key to start from
+	 * @param inclusive - whether to start at tuples with a key equal to the given key
+	 * @return an iterator over the tuples on this page with a key greater than (or, if
+	 * inclusive, greater than or equal to) the given key, found by binary search
+	 */
+	public Iterator<Tuple> iterator(Field key, boolean inclusive) {
+		return new BTreeLeafPageIterator(this, findSlot(key, inclusive));
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -532,6 +596,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int start) {
+		this.p = p;
+		this.curTuple = start;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -5,10 +5,16 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.io.DataInputStream;
+import java.text.ParseException;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -20,12 +26,16 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	// LSN of the last logged change, not stored on disk
+	protected volatile long pageLSN;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
-	protected final int keyField;
+	protected final int keyField; // the first of keyFields
+	protected final int[] keyFields;
+	private final int keySize;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -55,9 +65,93 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) {
+		this(id, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreePage of an index keyed on several fields.
+	 *
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, in key order
+	 */
+	public BTreePage(BTreePageId id, int[] keys) {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		int size = 0;
+		for (int f : keyFields) {
+			size += td.getFieldType(f).getLen();
+		}
+		this.keySize = size;
+	}
+
+	/**
+	 * Get the key of a tuple in an index keyed on the given fields: the value of the
+	 * key field, or a CompositeField of the key fields if there are several.
+	 * @param t - the tuple
+	 * @param keyFields - the fields which the index is keyed on
+	 * @return the key of the tuple
+	 */
+	static Field getKey(Tuple t, int[] keyFields) {
+		if (keyFields.length == 1) {
+			return t.getField(keyFields[0]);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++) {
+			fields[i] = t.getField(keyFields[i]);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return the key of a tuple of this page
+	 */
+	protected Field getKey(Tuple t) {
+		return getKey(t, keyFields);
+	}
+
+	/**
+	 * @return the number of bytes a key takes on disk
+	 */
+	protected int getKeySize() {
+		return keySize;
+	}
+
+	/**
+	 * Read a key written by Field.serialize()
+	 * @param dis - the stream to read from
+	 * @return the key
+	 * @throws ParseException if a key field cannot be read
+	 */
+	protected Field parseKey(DataInputStream dis) throws ParseException {
+		if (keyFields.length == 1) {
+			return td.getFieldType(keyField).parse(dis);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++) {
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return true if the given field is a key of this index, that is, has the type
+	 * of the key field or is a CompositeField of the types of all key fields
+	 */
+	protected boolean isKey(Field f) {
+		if (keyFields.length == 1) {
+			return f.getType().equals(td.getFieldType(keyField));
+		}
+		if (!(f instanceof CompositeField) || ((CompositeField) f).numFields() != keyFields.length) {
+			return false;
+		}
+		for (int i = 0; i < keyFields.length; i++) {
+			if (!((CompositeField) f).getField(i).getType().equals(td.getFieldType(keyFields[i]))) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -134,6 +228,20 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	/**
+	 * Returns the LSN of the last log record of a change to this page
+	 */
+	public long getPageLSN() {
+		return this.pageLSN;
+	}
+
+	/**
+	 * Records the LSN of a log record of a change to this page
+	 */
+	public void setPageLSN(long lsn) {
+		this.pageLSN = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -19,6 +19,8 @@ public class BTreeRootPtrPage implements Page {
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	// LSN of the last logged change, not stored on disk
+	private volatile long pageLSN;
 
 	private final BTreePageId pid;
 
@@ -140,6 +142,20 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	/**
+	 * Returns the LSN of the last log record of a change to this page
+	 */
+	public long getPageLSN() {
+		return this.pageLSN;
+	}
+
+	/**
+	 * Records the LSN of a log record of a change to this page
+	 */
+	public void setPageLSN(long lsn) {
+		this.pageLSN = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
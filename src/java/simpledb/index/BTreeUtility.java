@@ -151,6 +151,7 @@ public class BTreeUtility {
 		// Convert the tuples list to a B+ tree file
 		File hFile = File.createTempFile("table", ".dat");
 		hFile.deleteOnExit();
+		FreeSpaceMap.mapFileFor(hFile).deleteOnExit();
 
 		File bFile = File.createTempFile("table_index", ".dat");
 		bFile.deleteOnExit();
@@ -403,6 +404,7 @@ public class BTreeUtility {
 		// Convert the tuples list to a B+ tree file
 		File hFile = File.createTempFile("table", ".dat");
 		hFile.deleteOnExit();
+		FreeSpaceMap.mapFileFor(hFile).deleteOnExit();
 
 		File bFile = File.createTempFile("table_index", ".dat");
 		bFile.deleteOnExit();
@@ -453,6 +455,25 @@ public class BTreeUtility {
         return openBTreeFile(cols, f, keyField);
 	}
 
+	/**
+	 * A utility method to create a new BTreeFile with no data, with columns of the
+	 * given types, keyed on the given fields, assuming the path does not already
+	 * exist. If the path exists, the file will be overwritten. The new table will be
+	 * added to the Catalog.
+	 */
+	public static BTreeFile createEmptyBTreeFile(String path, Type[] types, int[] keyFields)
+			throws IOException {
+		File f = new File(path);
+		// touch the file
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(new byte[0]);
+		fos.close();
+
+		BTreeFile bf = new BTreeFile(f, keyFields, new TupleDesc(types));
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
 	/**
 	 * A utility method to create a new BTreeFile with no data, with the specified
 	 * number of pages, assuming the path does not already exist. If the path exists, 
@@ -0,0 +1,192 @@
+package simpledb.index;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * TupleSorter sorts tuples on their key fields for BTreeBulkLoader. It keeps up to
+ * a given number of tuples in memory. Beyond that, it sorts the tuples it holds into a
+ * run, writes the run to a temporary file, and merges all runs when the sorted tuples
+ * are read.
+ */
+class TupleSorter implements Closeable {
+
+	private final TupleDesc td;
+	private final int[] keyFields;
+	private final int bufferSize;
+	private final List<Tuple> buffer = new ArrayList<>();
+	private final List<File> runFiles = new ArrayList<>();
+	private final List<Long> runSizes = new ArrayList<>();
+	private long size = 0;
+
+	// set by sort()
+	private Iterator<Tuple> sorted = null;
+	private PriorityQueue<Run> runs = null;
+
+	/**
+	 * Constructor
+	 * @param td - the tuple descriptor of the tuples to sort
+	 * @param keyFields - the indexes of the fields to sort on, in key order
+	 * @param bufferSize - the number of tuples to sort in memory
+	 */
+	TupleSorter(TupleDesc td, int[] keyFields, int bufferSize) {
+		this.td = td;
+		this.keyFields = keyFields;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Adds a tuple to sort. Must not be called after sort().
+	 * @param t - the tuple
+	 * @throws IOException if a run cannot be written
+	 */
+	void add(Tuple t) throws IOException {
+		buffer.add(t);
+		size++;
+		if (buffer.size() >= bufferSize) {
+			spill();
+		}
+	}
+
+	/**
+	 * @return the number of tuples added
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Ends adding tuples and prepares to read them in sorted order.
+	 * @throws IOException if a run cannot be written or read
+	 */
+	void sort() throws IOException {
+		if (runFiles.isEmpty()) {
+			buffer.sort(this::compare);
+			sorted = buffer.iterator();
+			return;
+		}
+		if (!buffer.isEmpty()) {
+			spill();
+		}
+		runs = new PriorityQueue<>(runFiles.size(), (a, b) -> compare(a.head, b.head));
+		for (int i = 0; i < runFiles.size(); i++) {
+			Run run = new Run(runFiles.get(i), runSizes.get(i));
+			if (run.advance()) {
+				runs.add(run);
+			}
+		}
+	}
+
+	/**
+	 * @return the next tuple in sorted order, or null if all tuples were read
+	 * @throws IOException if a run cannot be read
+	 */
+	Tuple next() throws IOException {
+		if (sorted != null) {
+			return sorted.hasNext() ? sorted.next() : null;
+		}
+		Run run = runs.poll();
+		if (run == null) {
+			return null;
+		}
+		Tuple t = run.head;
+		if (run.advance()) {
+			runs.add(run);
+		}
+		return t;
+	}
+
+	/**
+	 * Deletes the temporary files of the runs.
+	 */
+	public void close() {
+		if (runs != null) {
+			for (Run run : runs) {
+				run.close();
+			}
+		}
+		for (File file : runFiles) {
+			file.delete();
+		}
+	}
+
+	private int compare(Tuple a, Tuple b) {
+		for (int keyField : keyFields) {
+			Field fa = a.getField(keyField);
+			Field fb = b.getField(keyField);
+			if (!fa.compare(Op.EQUALS, fb)) {
+				return fa.compare(Op.LESS_THAN, fb) ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Sorts the buffered tuples and writes them to a new run file.
+	 */
+	private void spill() throws IOException {
+		buffer.sort(this::compare);
+		File file = File.createTempFile("sortRun", ".dat");
+		file.deleteOnExit();
+		runFiles.add(file);
+		runSizes.add((long) buffer.size());
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			for (Tuple t : buffer) {
+				for (int i = 0; i < td.numFields(); i++) {
+					t.getField(i).serialize(out);
+				}
+			}
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * A run being merged, and the smallest tuple of it that was not returned yet.
+	 */
+	private class Run {
+		private final DataInputStream in;
+		private long remaining;
+		private Tuple head;
+
+		Run(File file, long size) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			this.remaining = size;
+		}
+
+		/**
+		 * Reads the next tuple of the run into head.
+		 * @return false if the run has no more tuples
+		 */
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				close();
+				return false;
+			}
+			remaining--;
+			head = new Tuple(td);
+			try {
+				for (int i = 0; i < td.numFields(); i++) {
+					head.setField(i, td.getFieldType(i).parse(in));
+				}
+			} catch (ParseException e) {
+				throw new IOException("cannot read sort run", e);
+			}
+			return true;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package simpledb.lock;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DeadlockDetector periodically looks for cycles in the waits-for graph of a
+ * LockManager and aborts one waiting transaction of each cycle it finds.
+ * <p>
+ * Blocked transactions never look for deadlocks themselves, so contended lock
+ * requests do not pay for a graph traversal. The detector thread only runs
+ * while some transaction is waiting: it is started by the first wait and
+ * exits once nobody waits anymore.
+ * <p>
+ * The graph is built from a snapshot of the waiters and the holders that
+ * block them. A snapshot taken while locks change hands can show a
+ * cycle that never existed; the only cost of that is an unnecessary abort.
+ *
+ * @Threadsafe
+ */
+class DeadlockDetector implements Runnable {
+
+    private final LockManager lockManager;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong victims = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    DeadlockDetector(LockManager lockManager) {
+        this.lockManager = lockManager;
+    }
+
+    /** Starts the detector thread, unless it is already running. */
+    void wake() {
+        if (!this.running.get() && this.running.compareAndSet(false, true)) {
+            Thread t = new Thread(this, "LockManager-deadlock-detector");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(this.lockManager.getDetectionInterval());
+            } catch (InterruptedException e) {
+                this.running.set(false);
+                return;
+            }
+            if (this.lockManager.waiters().isEmpty()) {
+                this.running.set(false);
+                // a transaction that started waiting before we cleared the
+                // flag saw us running and did not start another detector
+                if (this.lockManager.waiters().isEmpty() || !this.running.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+            detect();
+        }
+    }
+
+    /** Aborts one transaction of every cycle in the waits-for graph. */
+    void detect() {
+        this.runs.incrementAndGet();
+        Map<TransactionId, LockManager.Waiter> waiters = new HashMap<>(this.lockManager.waiters());
+        Map<TransactionId, Set<TransactionId>> graph = new HashMap<>();
+        for (LockManager.Waiter w : waiters.values()) {
+            graph.put(w.tid, w.lock.blockers(w.tid, w.mode));
+        }
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null) {
+            TransactionId victim = this.lockManager.getVictimPolicy().chooseVictim(cycle, this.lockManager);
+            long formed = 0;
+            for (TransactionId tid : cycle) {
+                formed = Math.max(formed, waiters.get(tid).since);
+            }
+            long latency = System.nanoTime() - formed;
+            this.victims.incrementAndGet();
+            this.totalLatency.addAndGet(latency);
+            this.maxLatency.accumulateAndGet(latency, Math::max);
+            waiters.get(victim).abort();
+            graph.remove(victim);
+        }
+    }
+
+    /** @return the transactions of some cycle in graph, or null if there is none */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph) {
+        Set<TransactionId> done = new HashSet<>();
+        for (TransactionId start : graph.keySet()) {
+            List<TransactionId> path = new ArrayList<>();
+            List<TransactionId> cycle = findCycle(graph, start, path, new HashSet<>(), done);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        return null;
+    }
+
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph,
+            TransactionId curr, List<TransactionId> path, Set<TransactionId> onPath, Set<TransactionId> done) {
+        if (onPath.contains(curr)) {
+            return new ArrayList<>(path.subList(path.indexOf(curr), path.size()));
+        }
+        Set<TransactionId> next = graph.get(curr);
+        if (next == null || !done.add(curr)) {
+            // not waiting, or already searched without finding a cycle
+            return null;
+        }
+        path.add(curr);
+        onPath.add(curr);
+        for (TransactionId holder : next) {
+            List<TransactionId> cycle = findCycle(graph, holder, path, onPath, done);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        path.remove(path.size() - 1);
+        onPath.remove(curr);
+        return null;
+    }
+
+    long getRunCount() {
+        return this.runs.get();
+    }
+
+    long getVictimCount() {
+        return this.victims.get();
+    }
+
+    double getMeanLatencyMillis() {
+        long n = this.victims.get();
+        return n == 0 ? 0.0 : this.totalLatency.get() / 1e6 / n;
+    }
+
+    double getMaxLatencyMillis() {
+        return this.maxLatency.get() / 1e6;
+    }
+
+    void resetStats() {
+        this.runs.set(0);
+        this.victims.set(0);
+        this.totalLatency.set(0);
+        this.maxLatency.set(0);
+    }
+}
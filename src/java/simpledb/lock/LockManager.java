@@ -1,44 +1,53 @@
 package simpledb.lock;
 
+import simpledb.index.BTreePageId;
+import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
-import java.util.HashMap;
+
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 
- ReadAndWriteLock class provides a simple implementation of a read-write lock.
- It allows multiple transactions to read a shared resource at the same time
- while ensuring that only one transaction has the ability to write or modify the resource
- at any given time.
- This class keeps track of the set of transactions that hold the lock,
- the number of readers, and the number of writers that are waiting to acquire the lock.
- The implementation of readLock() and writeLock() methods guarantees fairness
- and prevents starvation by using a synchronized wait-notify mechanism.
- This class is used by LockManager to control access to database pages in a concurrent manner.
+ ReadAndWriteLock is the shared/exclusive lock on one page.
+ Any number of transactions may hold it shared, or one transaction may hold it
+ exclusively. A transaction that is the only shared holder can upgrade to
+ exclusive without letting go of the lock.
+ <p>
+ The state of the lock is a single counter: the number of shared holders, or
+ WRITER while it is held exclusively. An uncontended acquisition is one
+ compare-and-set on the counter and never enters the monitor; threads only
+ synchronize on the lock, and wait on it, when they have to block. Shared
+ locks only take the fast path while nobody is waiting, so a stream of
+ readers cannot starve a waiting writer forever.
+ <p>
+ The LockManager only keeps locks that are held or waited for. The last
+ transaction to release a lock nobody waits for retires it: the state
+ becomes RETIRED, which no acquisition can succeed from, and the lock is
+ dropped from the lock table. A transaction that finds a retired lock looks
+ the page up again and gets a fresh lock.
  */
-class ReadAndWriteLock {
-    Set<TransactionId> lockusers;
-    Map<TransactionId, Boolean> lockwaiters;
-    boolean isWrite;
-    private int readNum;
-    private int writeNum;
+class ReadAndWriteLock implements WaitableLock {
+    private static final int WRITER = -1;
+    private static final int RETIRED = Integer.MIN_VALUE;
 
-    /**
-     Creates a new instance of ReadAndWriteLock with initial values for its fields:
-     isWrite is set to false, readNum and writeNum are set to 0,
-     lockusers is initialized to a new HashSet of TransactionId objects, and
-     lockwaiters is initialized to a new HashMap with TransactionId keys and Boolean values.
-     */
-    public ReadAndWriteLock() {
-        this.isWrite = false;
-        this.readNum = 0;
-        this.writeNum = 0;
-        this.lockusers = new HashSet<TransactionId>();
-        this.lockwaiters = new HashMap<TransactionId, Boolean>();
+    final PageId pid;
+    private final AtomicInteger state = new AtomicInteger();
+    // the shared holders; a transaction is added after it is counted in
+    // state and removed before it is uncounted
+    private final Set<TransactionId> readers = ConcurrentHashMap.newKeySet();
+    private volatile TransactionId writer;
+    // the number of threads blocked in the monitor
+    private volatile int waiting;
+
+    ReadAndWriteLock(PageId pid) {
+        this.pid = pid;
     }
 
     /**
@@ -47,215 +56,877 @@ class ReadAndWriteLock {
      @return true if the transaction holds the lock, false otherwise
      */
     public boolean holdBy(TransactionId tid) {
-        return this.lockusers.contains(tid);
+        return tid.equals(this.writer) || this.readers.contains(tid);
     }
 
     /**
-     Acquires a read lock on this ReadAndWriteLock instance for the specified transaction id.
-     If the transaction already holds the read lock, or a write lock is held by another transaction,
-     the method returns immediately. Otherwise, the method waits until there are no write locks
-     held by other transactions before granting the read lock to the transaction.
+     Returns true if the given transaction holds the lock exclusively.
+     */
+    public boolean writtenBy(TransactionId tid) {
+        return tid.equals(this.writer);
+    }
+
+    /**
+     Returns the transactions that currently hold the lock. The set is a copy.
+     */
+    public Set<TransactionId> holders() {
+        Set<TransactionId> holders = new HashSet<TransactionId>(this.readers);
+        TransactionId w = this.writer;
+        if (w != null) {
+            holders.add(w);
+        }
+        return holders;
+    }
+
+    @Override
+    public Set<TransactionId> blockers(TransactionId tid, LockMode mode) {
+        Set<TransactionId> blockers;
+        if (mode == LockMode.S) {
+            TransactionId w = this.writer;
+            blockers = new HashSet<TransactionId>();
+            if (w != null) {
+                blockers.add(w);
+            }
+        } else {
+            blockers = holders();
+        }
+        blockers.remove(tid);
+        return blockers;
+    }
+
+    @Override
+    public LockManager.PageCategory category() {
+        return LockManager.PageCategory.of(this.pid);
+    }
+
+    /**
+     Acquires the lock shared for the specified transaction, waiting while
+     another transaction holds it exclusively. Returns immediately if the
+     transaction already holds the lock in either mode.
      @param tid the transaction id that is requesting the read lock
-     @throws InterruptedException if the current thread is interrupted while waiting for the read lock
+     @param manager the lock manager, which is told when this transaction
+            blocks
+     @return true if the lock was acquired, false if it was retired
+     @throws TransactionAbortedException if the transaction was chosen as
+             the victim of a deadlock, must not wait under the deadlock
+             mode of the lock manager, waited past its lock timeout or was
+             interrupted
      */
-    public void readLock(TransactionId tid) throws InterruptedException {
-        if (this.lockusers.contains(tid) & !this.isWrite) {
-            return;
+    public boolean readLock(TransactionId tid, LockManager manager) throws TransactionAbortedException {
+        if (holdBy(tid)) {
+            return true;
+        }
+        if (this.waiting == 0 && tryReadLock(tid)) {
+            return true;
         }
-        this.lockwaiters.put(tid, false);
         synchronized (this) {
-                while (this.writeNum > 0) {
-                    this.wait();
+            this.waiting++;
+            if (tryReadLock(tid)) {
+                this.waiting--;
+                return true;
+            }
+            if (this.state.get() == RETIRED) {
+                this.waiting--;
+                return false;
+            }
+            LockManager.Waiter w = manager.startWait(tid, this, LockMode.S);
+            try {
+                while (!tryReadLock(tid)) {
+                    this.wait(manager.checkWait(w));
                 }
-                this.isWrite = false;
-                this.readNum+=1;
-                this.lockusers.add(tid);
+                return true;
+            } catch (InterruptedException e) {
+                throw new TransactionAbortedException("interrupted while waiting for a lock");
+            } finally {
+                this.waiting--;
+                manager.endWait(w);
+            }
+        }
+    }
 
+    private boolean tryReadLock(TransactionId tid) {
+        int s;
+        while ((s = this.state.get()) >= 0) {
+            if (this.state.compareAndSet(s, s + 1)) {
+                this.readers.add(tid);
+                return true;
+            }
         }
-        this.lockwaiters.remove(tid);
+        return false;
     }
 
     /**
-     Acquires the write lock if it's available, otherwise waits until it's available.
-     If the calling transaction already holds the write lock, returns immediately.
-     If the calling transaction already holds a read lock, this method releases the read lock
-     and waits until all other read locks have been released before acquiring the write lock.
+     Acquires the lock exclusively for the specified transaction, waiting
+     until no other transaction holds it. A shared lock held by the
+     transaction is upgraded in place. Returns immediately if the transaction
+     already holds the lock exclusively.
      @param tid the ID of the transaction requesting the write lock.
-     @throws InterruptedException if the thread is interrupted while waiting for the lock.
+     @param manager the lock manager, which is told when this transaction
+            blocks
+     @return true if the lock was acquired, false if it was retired
+     @throws TransactionAbortedException if the transaction was chosen as
+             the victim of a deadlock, must not wait under the deadlock
+             mode of the lock manager, waited past its lock timeout or was
+             interrupted
      */
-    public void writeLock(TransactionId tid) throws InterruptedException {
-        if (this.lockusers.contains(tid) & this.isWrite) {
-            return;
+    public boolean writeLock(TransactionId tid, LockManager manager) throws TransactionAbortedException {
+        if (tid.equals(this.writer)) {
+            return true;
         }
-        if(this.lockwaiters.containsKey(tid)) {
-            if (this.lockwaiters.get(tid)) {
-                return;
-            }
+        if (tryWriteLock(tid)) {
+            return true;
         }
-        this.lockwaiters.put(tid, true);
         synchronized (this) {
-            if (this.lockusers.contains(tid)) {
-                while (this.lockusers.size() > 1) {
-                    this.wait();
+            this.waiting++;
+            if (tryWriteLock(tid)) {
+                this.waiting--;
+                return true;
+            }
+            if (this.state.get() == RETIRED) {
+                this.waiting--;
+                return false;
+            }
+            LockManager.Waiter w = manager.startWait(tid, this, LockMode.X);
+            try {
+                while (!tryWriteLock(tid)) {
+                    this.wait(manager.checkWait(w));
                 }
-                unlock(tid);
+                return true;
+            } catch (InterruptedException e) {
+                throw new TransactionAbortedException("interrupted while waiting for a lock");
+            } finally {
+                this.waiting--;
+                manager.endWait(w);
             }
-            while (this.readNum != 0 | this.writeNum != 0) {
-                this.wait();
+        }
+    }
+
+    private boolean tryWriteLock(TransactionId tid) {
+        if (this.readers.contains(tid)) {
+            // the only holder is this transaction
+            if (!this.state.compareAndSet(1, WRITER)) {
+                return false;
             }
-            this.isWrite = true;
-            this.writeNum+=1;
-            this.lockusers.add(tid);
+            this.readers.remove(tid);
+        } else if (!this.state.compareAndSet(0, WRITER)) {
+            return false;
         }
-        this.lockwaiters.remove(tid);
+        this.writer = tid;
+        return true;
     }
+
     /**
 
-     Releases the lock held by the specified transaction, allowing other transactions to acquire the lock.
-     If the lock is held in write mode, the transaction must hold the write lock to release it.
-     If the lock is held in read mode, the transaction must hold a read lock to release it.
-     If the specified transaction does not hold the lock, this method does nothing.
-     After releasing the lock, this method notifies all waiting threads that the lock is available.
+     Releases the lock held by the specified transaction, in whichever mode it
+     is held, and wakes up the threads waiting for it, if any. If the
+     specified transaction does not hold the lock, this method does nothing.
      @param tid the ID of the transaction releasing the lock
+     @return true if the lock is now retired and must be dropped from the
+             lock table
      */
-    public void unlock(TransactionId tid) {
-        if (isWrite){
-            if (!lockusers.contains(tid)) {
-                return;
-            }
-            synchronized (this) {
-                writeNum-=1;
-                lockusers.remove(tid);
-                notifyAll();
-            }
+    public boolean unlock(TransactionId tid) {
+        if (tid.equals(this.writer)) {
+            this.writer = null;
+            this.state.set(0);
+        } else if (this.readers.remove(tid)) {
+            this.state.decrementAndGet();
+        } else {
+            return false;
         }
-        else {
-            if (!lockusers.contains(tid)) {
-                return;
-            }
+        // a waiter increments waiting before it checks the state, so either
+        // it sees the release or we see it and wake it up
+        if (this.waiting > 0) {
             synchronized (this) {
-                readNum-=1;
-                lockusers.remove(tid);
                 notifyAll();
             }
+            return false;
         }
+        // a thread that starts waiting after this finds the lock retired
+        // and looks it up again
+        return this.state.compareAndSet(0, RETIRED);
     }
-
 }
 
+/**
+ LockManager grants locks to transactions under strict two-phase locking, at
+ two granularities: tables (identified by {@link simpledb.storage.DbFile#getId})
+ are locked in any {@link LockMode}, pages shared or exclusively. Before it
+ locks a page, a transaction takes an intention lock (IS or IX) on the page's
+ table, so a transaction holding the whole table S or X conflicts with
+ every transaction locking its pages.
+ <p>
+ A transaction that locks more than the escalation threshold of pages of
+ one table is escalated: it gets the table lock instead (S, SIX or X) and
+ its page locks on that table are dropped, which bounds the locks a scan
+ of a big table holds. Escalation only happens if the table lock can be
+ granted right away; otherwise the transaction keeps its page locks and
+ tries again later, so escalation never makes a transaction wait or
+ deadlock.
+ <p>
+ How deadlocks are handled depends on the
+ {@link DeadlockMode}: by default a background {@link DeadlockDetector}
+ aborts one transaction of every cycle of waiting transactions, chosen by
+ the {@link VictimPolicy}.
+ <p>
+ The lock table is split by page into independent stripes, so transactions
+ working on different pages never contend on the lock manager itself, and
+ none of the bookkeeping is guarded by a global monitor. Locks are created
+ on demand and dropped as soon as nobody holds or waits for them, see
+ {@link #getLockTableSize}.
+
+ @Threadsafe
+ */
 public class LockManager {
-    Map<PageId, ReadAndWriteLock> pageid_locks;
-    public Map<TransactionId, Set<PageId>> tid_pageids;
-    Map<TransactionId, Set<TransactionId>> deadLockGraph;
 
-    public LockManager() {
-        this.pageid_locks = new HashMap<PageId, ReadAndWriteLock>();
-        this.tid_pageids = new HashMap<TransactionId, Set<PageId>>();
-        this.deadLockGraph = new HashMap<TransactionId, Set<TransactionId>>();
+    private static final class Stripe {
+        final Map<PageId, ReadAndWriteLock> locks = new ConcurrentHashMap<PageId, ReadAndWriteLock>();
     }
 
-    public void acquireReadLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-        ReadAndWriteLock lock;
-        synchronized (this) {
-            if (!pageid_locks.containsKey(pid)) {
-                pageid_locks.put(pid, new ReadAndWriteLock());
-            }
-            lock = pageid_locks.get(pid);
-            if (lock.holdBy(tid)) {
-                return;
+    /** The locks held by one transaction. */
+    private static final class TxnLocks {
+        // page locks
+        final Set<PageId> pages = ConcurrentHashMap.newKeySet();
+        // table locks, by table id
+        final Map<Integer, LockMode> tables = new ConcurrentHashMap<Integer, LockMode>();
+        // the number of page locks held on each table
+        final Map<Integer, AtomicInteger> pageCounts = new ConcurrentHashMap<Integer, AtomicInteger>();
+    }
+
+    private final Stripe[] stripes;
+    private final Map<Integer, TableLock> tableLocks;
+    private final Map<TransactionId, TxnLocks> txnLocks;
+    // the wait of each blocked transaction
+    private final Map<TransactionId, Waiter> waitsFor;
+    private final DeadlockDetector detector;
+    private volatile VictimPolicy victimPolicy = VictimPolicy.YOUNGEST;
+    private volatile long detectionInterval = DEFAULT_DETECTION_INTERVAL;
+
+    /** Default time between two searches for deadlocks, in milliseconds. */
+    public static final long DEFAULT_DETECTION_INTERVAL = 10;
+
+    /** Default number of pages of one table a transaction locks before it is escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    // how many more pages an escalated transaction locks before it tries
+    // again, after the table lock could not be granted
+    private static final int ESCALATION_RETRY_INTERVAL = 64;
+
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private final AtomicLong escalations = new AtomicLong();
+
+    /** Default longest time a lock request waits, in milliseconds. */
+    public static final long DEFAULT_LOCK_TIMEOUT = 10000;
+
+    private volatile long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+    // lock timeouts set for single transactions
+    private final Map<TransactionId, Long> lockTimeouts = new ConcurrentHashMap<TransactionId, Long>();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final LockWaitHistogram[] waitTimes = new LockWaitHistogram[PageCategory.values().length];
+
+    /**
+     The kinds of locks lock wait times are kept apart for: page locks by the
+     kind of page, and table locks.
+     */
+    public enum PageCategory {
+        HEAP, BTREE_ROOT_PTR, BTREE_INTERNAL, BTREE_LEAF, BTREE_HEADER, TABLE, OTHER;
+
+        /** Returns the category of the given page. */
+        public static PageCategory of(PageId pid) {
+            if (pid instanceof HeapPageId) {
+                return HEAP;
             }
-            if (lock.isWrite) {
-                deadLockGraph.put(tid, lock.lockusers);
-                if (hasDeadLock(tid)) {
-                    deadLockGraph.remove(tid);
-                    throw new TransactionAbortedException();
+            if (pid instanceof BTreePageId) {
+                switch (((BTreePageId) pid).pgcateg()) {
+                case BTreePageId.ROOT_PTR:
+                    return BTREE_ROOT_PTR;
+                case BTreePageId.INTERNAL:
+                    return BTREE_INTERNAL;
+                case BTreePageId.LEAF:
+                    return BTREE_LEAF;
+                case BTreePageId.HEADER:
+                    return BTREE_HEADER;
+                default:
+                    break;
                 }
             }
+            return OTHER;
         }
-        try {
-            lock.readLock(tid);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    }
+
+    /**
+     How the lock manager keeps deadlocked transactions from waiting forever.
+     The timestamp-based modes order transactions by
+     {@link TransactionId#isOlderThan}; they never let a cycle form, so they
+     need no waits-for graph and no detector thread.
+     */
+    public enum DeadlockMode {
+        /** Let transactions wait and abort a victim of every cycle. */
+        DETECT,
+        /**
+         A transaction may only wait for younger transactions; if an older
+         one holds the lock, the requester aborts ("dies").
+         */
+        WAIT_DIE,
+        /**
+         A transaction aborts ("wounds") the younger transactions holding
+         the lock it wants and waits for the older ones. A wounded
+         transaction aborts when it next waits for or requests a lock.
+         */
+        WOUND_WAIT
+    }
+
+    private volatile DeadlockMode deadlockMode = defaultDeadlockMode();
+    // transactions wounded under WOUND_WAIT that have not completed yet
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+
+    /**
+     The deadlock mode named by the simpledb.lock.DeadlockMode system
+     property, or DETECT.
+     */
+    private static DeadlockMode defaultDeadlockMode() {
+        String mode = System.getProperty("simpledb.lock.DeadlockMode");
+        return mode == null ? DeadlockMode.DETECT : DeadlockMode.valueOf(mode);
+    }
+
+    /**
+     A transaction blocked on a lock. The deadlock detector aborts the wait
+     by setting aborted and waking up the threads waiting for the lock.
+     */
+    static final class Waiter {
+        final TransactionId tid;
+        final WaitableLock lock;
+        final LockMode mode;
+        final long since = System.nanoTime();
+        // when the wait times out, in System.nanoTime(); 0 if it never does
+        final long deadline;
+        volatile boolean aborted;
+
+        Waiter(TransactionId tid, WaitableLock lock, LockMode mode, long timeoutMillis) {
+            this.tid = tid;
+            this.lock = lock;
+            this.mode = mode;
+            this.deadline = timeoutMillis == 0 ? 0 : this.since + timeoutMillis * 1000000;
         }
-        synchronized (this) {
-            deadLockGraph.remove(tid);
-            if (!tid_pageids.containsKey(tid)) {
-                tid_pageids.put(tid, new HashSet<PageId>());
+
+        void abort() {
+            this.aborted = true;
+            synchronized (this.lock) {
+                this.lock.notifyAll();
             }
-            tid_pageids.get(tid).add(pid);
         }
     }
 
-    public void acquireWriteLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-        ReadAndWriteLock lock;
-        synchronized (this) {
-            if (!pageid_locks.containsKey(pid)) {
-                pageid_locks.put(pid, new ReadAndWriteLock());
-            }
-            lock = pageid_locks.get(pid);
-            if (!lock.lockusers.isEmpty()){
-                deadLockGraph.put(tid, lock.lockusers);
-                if (hasDeadLock(tid)) {
-                    deadLockGraph.remove(tid);
-                    throw new TransactionAbortedException();
-                }
+    public LockManager() {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.tableLocks = new ConcurrentHashMap<Integer, TableLock>();
+        this.txnLocks = new ConcurrentHashMap<TransactionId, TxnLocks>();
+        this.waitsFor = new ConcurrentHashMap<TransactionId, Waiter>();
+        this.detector = new DeadlockDetector(this);
+        for (int i = 0; i < this.waitTimes.length; i++) {
+            this.waitTimes[i] = new LockWaitHistogram();
+        }
+    }
+
+    private Map<PageId, ReadAndWriteLock> stripe(PageId pid) {
+        int h = pid.hashCode();
+        return this.stripes[(h ^ (h >>> 16)) & (this.stripes.length - 1)].locks;
+    }
+
+    private ReadAndWriteLock lockFor(PageId pid) {
+        Map<PageId, ReadAndWriteLock> locks = stripe(pid);
+        ReadAndWriteLock lock = locks.get(pid);
+        if (lock == null) {
+            lock = locks.computeIfAbsent(pid, ReadAndWriteLock::new);
+        }
+        return lock;
+    }
+
+    private TableLock tableLockFor(int tableId) {
+        TableLock lock = this.tableLocks.get(tableId);
+        if (lock == null) {
+            lock = this.tableLocks.computeIfAbsent(tableId, TableLock::new);
+        }
+        return lock;
+    }
+
+    /** Locks the page, retrying if its lock is retired under us. */
+    private void lockPage(TransactionId tid, PageId pid, boolean exclusive) throws TransactionAbortedException {
+        while (true) {
+            ReadAndWriteLock lock = lockFor(pid);
+            if (exclusive ? lock.writeLock(tid, this) : lock.readLock(tid, this)) {
+                return;
             }
+            // the transaction that retired it is about to drop it
+            stripe(pid).remove(pid, lock);
         }
-        try {
-            lock.writeLock(tid);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    }
+
+    /** Unlocks the page and drops its lock from the lock table if it is retired. */
+    private void unlockPage(TransactionId tid, PageId pid) {
+        Map<PageId, ReadAndWriteLock> locks = stripe(pid);
+        ReadAndWriteLock lock = locks.get(pid);
+        if (lock != null && lock.unlock(tid)) {
+            locks.remove(pid, lock);
         }
-        synchronized (this) {
-            deadLockGraph.remove(tid);
-            if (!tid_pageids.containsKey(tid)) {
-                tid_pageids.put(tid, new HashSet<PageId>());
+    }
+
+    /** Locks the table, retrying if its lock is retired under us. */
+    private LockMode lockTable(TransactionId tid, int tableId, LockMode mode) throws TransactionAbortedException {
+        while (true) {
+            TableLock lock = tableLockFor(tableId);
+            LockMode granted = lock.lock(tid, mode, this);
+            if (granted != null) {
+                return granted;
             }
-            tid_pageids.get(tid).add(pid);
+            this.tableLocks.remove(tableId, lock);
+        }
+    }
+
+    /** Unlocks the table and drops its lock if it is retired. */
+    private void unlockTable(TransactionId tid, int tableId) {
+        TableLock lock = this.tableLocks.get(tableId);
+        if (lock != null && lock.unlock(tid)) {
+            this.tableLocks.remove(tableId, lock);
         }
     }
 
-    public synchronized void releaseLock(TransactionId tid, PageId pid) {
-        if (!pageid_locks.containsKey(pid)) {
+    private TxnLocks txnLocks(TransactionId tid) {
+        TxnLocks locks = this.txnLocks.get(tid);
+        if (locks == null) {
+            locks = this.txnLocks.computeIfAbsent(tid, k -> new TxnLocks());
+        }
+        return locks;
+    }
+
+    /**
+     Acquires a shared lock on the given page, unless the transaction holds
+     a table lock covering it.
+     */
+    public void acquireReadLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        checkWounded(tid);
+        TxnLocks locks = txnLocks(tid);
+        int tableId = pid.getTableId();
+        LockMode table = locks.tables.get(tableId);
+        if (table != null && table.covers(LockMode.S)) {
             return;
         }
-        ReadAndWriteLock lock = pageid_locks.get(pid);
-        tid_pageids.get(tid).remove(pid);
-        lock.unlock(tid);
+        if (table == null) {
+            locks.tables.put(tableId, lockTable(tid, tableId, LockMode.IS));
+        }
+        lockPage(tid, pid, false);
+        if (locks.pages.add(pid)) {
+            pageLocked(tid, locks, tableId, false);
+        }
     }
 
-    public synchronized void releaseAllLocks(TransactionId tid) {
-        if (!tid_pageids.containsKey(tid)) {
+    /**
+     Acquires an exclusive lock on the given page, unless the transaction
+     holds the table X.
+     */
+    public void acquireWriteLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        checkWounded(tid);
+        TxnLocks locks = txnLocks(tid);
+        int tableId = pid.getTableId();
+        LockMode table = locks.tables.get(tableId);
+        if (table == LockMode.X) {
             return;
         }
-        Set<PageId> pages = tid_pageids.get(tid);
-        PageId[] page_array = new PageId[pages.size()];
-        pages.toArray(page_array);
-        for (PageId pageId: page_array) {
-            releaseLock(tid, pageId);
+        if (table == null || !table.covers(LockMode.IX)) {
+            locks.tables.put(tableId, lockTable(tid, tableId, LockMode.IX));
+        }
+        lockPage(tid, pid, true);
+        if (locks.pages.add(pid)) {
+            pageLocked(tid, locks, tableId, true);
         }
-        tid_pageids.remove(tid);
     }
 
-    private boolean hasDeadLock(TransactionId tid) {
-        Set<TransactionId> visited = new HashSet<TransactionId>();
-        return dfs(tid, visited);
+    /**
+     Acquires a lock on a whole table, waiting while other transactions hold
+     incompatible locks on it or on its pages. A transaction already holding
+     a lock on the table converts it to a mode granting both.
+     @param tableId the id of the table's DbFile
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        checkWounded(tid);
+        TxnLocks locks = txnLocks(tid);
+        LockMode held = locks.tables.get(tableId);
+        if (held != null && held.covers(mode)) {
+            return;
+        }
+        LockMode granted = lockTable(tid, tableId, mode);
+        locks.tables.put(tableId, granted);
+        dropCoveredPageLocks(tid, locks, tableId, granted);
+    }
+
+    /**
+     Counts a new page lock on the given table and escalates the transaction
+     to a table lock once it holds too many.
+     @param write whether the page was locked exclusively
+     */
+    private void pageLocked(TransactionId tid, TxnLocks locks, int tableId, boolean write) {
+        AtomicInteger count = locks.pageCounts.get(tableId);
+        if (count == null) {
+            count = locks.pageCounts.computeIfAbsent(tableId, k -> new AtomicInteger());
+        }
+        int over = count.incrementAndGet() - this.escalationThreshold;
+        if (over <= 0 || (over - 1) % ESCALATION_RETRY_INTERVAL != 0) {
+            return;
+        }
+        LockMode mode = write ? LockMode.X : locks.tables.get(tableId).combine(LockMode.S);
+        // the transaction holds an intention lock on the table, so the
+        // table lock cannot be retired
+        LockMode granted = tableLockFor(tableId).tryLock(tid, mode);
+        if (granted == null) {
+            return;
+        }
+        locks.tables.put(tableId, granted);
+        this.escalations.incrementAndGet();
+        dropCoveredPageLocks(tid, locks, tableId, granted);
     }
-    private boolean dfs(TransactionId curr, Set<TransactionId> visited) {
-        visited.add(curr);
-        if (!deadLockGraph.containsKey(curr)) {
+
+    /** Releases the page locks on the given table that the table lock makes redundant. */
+    private void dropCoveredPageLocks(TransactionId tid, TxnLocks locks, int tableId, LockMode table) {
+        if (!table.covers(LockMode.S)) {
+            return;
+        }
+        AtomicInteger count = locks.pageCounts.get(tableId);
+        if (count == null) {
+            return;
+        }
+        for (PageId pid : locks.pages) {
+            if (pid.getTableId() != tableId) {
+                continue;
+            }
+            if (table == LockMode.X || !stripe(pid).get(pid).writtenBy(tid)) {
+                locks.pages.remove(pid);
+                unlockPage(tid, pid);
+                count.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     Releases the transaction's lock on the given page. Table locks are kept,
+     so this does nothing for a page only covered by a table lock.
+     */
+    public void releaseLock(TransactionId tid, PageId pid) {
+        TxnLocks locks = this.txnLocks.get(tid);
+        if (locks != null && locks.pages.remove(pid)) {
+            locks.pageCounts.get(pid.getTableId()).decrementAndGet();
+        }
+        unlockPage(tid, pid);
+    }
+
+    public void releaseAllLocks(TransactionId tid) {
+        this.wounded.remove(tid);
+        this.lockTimeouts.remove(tid);
+        TxnLocks locks = this.txnLocks.remove(tid);
+        if (locks == null) {
+            return;
+        }
+        for (PageId pageId : locks.pages) {
+            unlockPage(tid, pageId);
+        }
+        for (Integer tableId : locks.tables.keySet()) {
+            unlockTable(tid, tableId);
+        }
+    }
+
+    /**
+     Returns true if the given transaction holds a lock on the given page,
+     or a table lock that lets it read the page.
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        TxnLocks locks = this.txnLocks.get(tid);
+        if (locks == null) {
             return false;
         }
-        for (TransactionId adj : deadLockGraph.get(curr)) {
-            if (adj.equals(curr)) continue;
-            if (visited.contains(adj)) {
-                return true;
+        if (locks.pages.contains(pid)) {
+            return true;
+        }
+        LockMode table = locks.tables.get(pid.getTableId());
+        return table != null && table.covers(LockMode.S);
+    }
+
+    /**
+     Returns a snapshot of the pages the given transaction holds page locks
+     on; pages covered by a table lock are not included. The set is a copy,
+     so callers may iterate over it while other threads acquire and release
+     locks.
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        TxnLocks locks = this.txnLocks.get(tid);
+        return locks == null ? new HashSet<PageId>() : new HashSet<PageId>(locks.pages);
+    }
+
+    /**
+     Returns the mode the given transaction holds the given table's lock in,
+     or null if it holds none.
+     */
+    public LockMode getTableLockMode(TransactionId tid, int tableId) {
+        TxnLocks locks = this.txnLocks.get(tid);
+        return locks == null ? null : locks.tables.get(tableId);
+    }
+
+    /**
+     @return the number of page and table locks the given transaction holds
+     */
+    public int getLockCount(TransactionId tid) {
+        TxnLocks locks = this.txnLocks.get(tid);
+        return locks == null ? 0 : locks.pages.size() + locks.tables.size();
+    }
+
+    /**
+     Called by a lock when the given transaction blocks on it, requesting
+     the given mode.
+     @return the wait, which the deadlock detector may abort
+     */
+    Waiter startWait(TransactionId tid, WaitableLock lock, LockMode mode) {
+        Long timeout = this.lockTimeouts.get(tid);
+        Waiter w = new Waiter(tid, lock, mode, timeout != null ? timeout : this.lockTimeout);
+        this.waitsFor.put(tid, w);
+        if (this.deadlockMode == DeadlockMode.DETECT) {
+            this.detector.wake();
+        }
+        return w;
+    }
+
+    /**
+     Called by a lock each time before the given wait blocks, with the
+     lock's monitor held.
+     @return how long to block before calling again, in milliseconds; 0 means
+             until the lock is released
+     @throws TransactionAbortedException if the transaction must not wait
+     */
+    long checkWait(Waiter w) throws TransactionAbortedException {
+        if (w.aborted) {
+            throw new TransactionAbortedException("deadlock victim");
+        }
+        switch (this.deadlockMode) {
+        case WAIT_DIE:
+            for (TransactionId holder : w.lock.blockers(w.tid, w.mode)) {
+                if (holder.isOlderThan(w.tid)) {
+                    throw new TransactionAbortedException("wait-die: an older transaction holds the lock");
+                }
             }
-            if (dfs(adj, visited)) {
-                return true;
+            break;
+        case WOUND_WAIT:
+            checkWounded(w.tid);
+            for (TransactionId holder : w.lock.blockers(w.tid, w.mode)) {
+                if (w.tid.isOlderThan(holder) && this.wounded.add(holder)) {
+                    Waiter hw = this.waitsFor.get(holder);
+                    if (hw != null) {
+                        // no notify: it would take another lock's monitor
+                        // while we hold this one; hw notices within the
+                        // detection interval
+                        hw.aborted = true;
+                    }
+                }
             }
+            break;
+        default:
+            break;
         }
-        visited.remove(curr);
-        return false;
+        long wait = this.deadlockMode == DeadlockMode.WOUND_WAIT ? this.detectionInterval : 0;
+        if (w.deadline != 0) {
+            long left = w.deadline - System.nanoTime();
+            if (left <= 0) {
+                this.timeouts.incrementAndGet();
+                throw new TransactionAbortedException("lock wait timed out");
+            }
+            long leftMillis = (left + 999999) / 1000000;
+            wait = wait == 0 ? leftMillis : Math.min(wait, leftMillis);
+        }
+        return wait;
     }
-}
\ No newline at end of file
+
+    private void checkWounded(TransactionId tid) throws TransactionAbortedException {
+        if (this.deadlockMode == DeadlockMode.WOUND_WAIT && this.wounded.contains(tid)) {
+            throw new TransactionAbortedException("wounded by an older transaction");
+        }
+    }
+
+    /** Called by a lock when a transaction stops waiting for it. */
+    void endWait(Waiter w) {
+        this.waitsFor.remove(w.tid, w);
+        this.waitTimes[w.lock.category().ordinal()].record(System.nanoTime() - w.since);
+    }
+
+    /** Returns the blocked transactions and what they wait for. */
+    Map<TransactionId, Waiter> waiters() {
+        return this.waitsFor;
+    }
+
+    /**
+     Sets how deadlocks are handled. This should only be changed while no
+     transaction is waiting for a lock.
+     */
+    public void setDeadlockMode(DeadlockMode deadlockMode) {
+        this.deadlockMode = deadlockMode;
+    }
+
+    public DeadlockMode getDeadlockMode() {
+        return this.deadlockMode;
+    }
+
+    /**
+     Sets how long a lock request may wait before its transaction is
+     aborted, for transactions without a timeout of their own.
+     @param millis the timeout in milliseconds; 0 means no timeout
+     */
+    public void setLockTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("lock timeout must not be negative");
+        }
+        this.lockTimeout = millis;
+    }
+
+    public long getLockTimeout() {
+        return this.lockTimeout;
+    }
+
+    /**
+     Sets how long the lock requests of one transaction may wait before it is
+     aborted. The setting is dropped when the transaction releases its locks.
+     @param millis the timeout in milliseconds; 0 means no timeout
+     */
+    public void setLockTimeout(TransactionId tid, long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("lock timeout must not be negative");
+        }
+        this.lockTimeouts.put(tid, millis);
+    }
+
+    /**
+     @return the number of lock requests that timed out
+     */
+    public long getTimeoutCount() {
+        return this.timeouts.get();
+    }
+
+    /**
+     Returns how long lock requests on pages of the given category were
+     blocked, whether they got the lock or not. Requests that did not block
+     are not counted.
+     */
+    public LockWaitHistogram getWaitHistogram(PageCategory category) {
+        return this.waitTimes[category.ordinal()];
+    }
+
+    /**
+     Returns the number of locks in the lock table. Only locks that are held
+     or waited for are kept, so this stays proportional to the working set
+     of the running transactions rather than to every page ever touched.
+     @return the number of page and table locks
+     */
+    public int getLockTableSize() {
+        int n = this.tableLocks.size();
+        for (Stripe stripe : this.stripes) {
+            n += stripe.locks.size();
+        }
+        return n;
+    }
+
+    /**
+     @return the number of transactions the lock manager keeps locks for
+     */
+    public int getTransactionCount() {
+        return this.txnLocks.size();
+    }
+
+    /**
+     Sets how many pages of one table a transaction may lock before it is
+     escalated to a table lock.
+     */
+    public void setEscalationThreshold(int pages) {
+        if (pages <= 0) {
+            throw new IllegalArgumentException("escalation threshold must be positive");
+        }
+        this.escalationThreshold = pages;
+    }
+
+    public int getEscalationThreshold() {
+        return this.escalationThreshold;
+    }
+
+    /**
+     @return the number of times a transaction was escalated to a table lock
+     */
+    public long getEscalationCount() {
+        return this.escalations.get();
+    }
+
+    /**
+     Sets how the victim of a deadlock is chosen in DETECT mode.
+     */
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return this.victimPolicy;
+    }
+
+    /**
+     Sets the time between two searches for deadlocks, which bounds how long
+     deadlocked transactions wait before one of them is aborted. Under
+     WOUND_WAIT it is how often a waiting transaction checks whether it was
+     wounded.
+     @param millis the interval in milliseconds
+     */
+    public void setDetectionInterval(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("detection interval must be positive");
+        }
+        this.detectionInterval = millis;
+    }
+
+    public long getDetectionInterval() {
+        return this.detectionInterval;
+    }
+
+    /**
+     @return the number of transactions aborted to break deadlocks
+     */
+    public long getDeadlockCount() {
+        return this.detector.getVictimCount();
+    }
+
+    /**
+     @return the number of times the deadlock detector searched for cycles
+     */
+    public long getDetectionRunCount() {
+        return this.detector.getRunCount();
+    }
+
+    /**
+     @return the mean time from a deadlock forming, i.e. the last
+             transaction of the cycle starting to wait, to its victim being
+             chosen, in milliseconds
+     */
+    public double getMeanDetectionLatency() {
+        return this.detector.getMeanLatencyMillis();
+    }
+
+    /**
+     @return the longest time a deadlock went undetected, in milliseconds
+     */
+    public double getMaxDetectionLatency() {
+        return this.detector.getMaxLatencyMillis();
+    }
+
+    /** Resets the deadlock, timeout, escalation and wait time statistics. */
+    public void resetStats() {
+        this.detector.resetStats();
+        this.timeouts.set(0);
+        this.escalations.set(0);
+        for (LockWaitHistogram h : this.waitTimes) {
+            h.reset();
+        }
+    }
+}
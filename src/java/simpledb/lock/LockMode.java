@@ -0,0 +1,64 @@
+package simpledb.lock;
+
+/**
+ * LockMode is the mode a lock is held in. Pages are locked shared (S) or
+ * exclusive (X). Tables can also be locked with intention modes, which say
+ * that the holder locks pages of the table: IS before reading pages, IX
+ * before writing them, and SIX to read the whole table while writing some
+ * of its pages.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // COMPATIBLE[a][b]: a transaction may hold a while another holds b
+    private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+    };
+
+    /**
+     * @return true if one transaction may hold this mode while another one
+     *         holds the other mode on the same lock
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return true if holding this mode grants everything the other mode does
+     */
+    public boolean covers(LockMode other) {
+        switch (this) {
+        case X:
+            return true;
+        case SIX:
+            return other != X;
+        case S:
+            return other == IS || other == S;
+        case IX:
+            return other == IS || other == IX;
+        default:
+            return other == IS;
+        }
+    }
+
+    /**
+     * @return the weakest mode that grants everything this mode and the other
+     *         one do, i.e. what a holder of this mode converts to when it
+     *         asks for the other one
+     */
+    public LockMode combine(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        // S and IX
+        return SIX;
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb.lock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LockWaitHistogram counts how long lock requests were blocked. Bucket i
+ * counts waits shorter than 2^i microseconds (and at least 2^(i-1)), so the
+ * histogram covers microsecond to hour-long waits in a fixed, small array
+ * and recording a wait is a couple of atomic increments.
+ *
+ * @Threadsafe
+ */
+public class LockWaitHistogram {
+
+    private static final int BUCKETS = 33;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** Records a wait of the given length. */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        this.buckets.incrementAndGet(bucket);
+        this.totalNanos.addAndGet(nanos);
+        this.maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return the number of waits recorded
+     */
+    public long getCount() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += this.buckets.get(i);
+        }
+        return n;
+    }
+
+    /**
+     * @return the mean wait, in milliseconds
+     */
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0.0 : this.totalNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * @return the longest wait, in milliseconds
+     */
+    public double getMax() {
+        return this.maxNanos.get() / 1e6;
+    }
+
+    /**
+     * @param p the fraction of waits, between 0 and 1
+     * @return an upper bound on the length of the shortest p of all waits, in
+     *         milliseconds, precise to a factor of 2
+     */
+    public double getPercentile(double p) {
+        long n = getCount();
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.buckets.get(i);
+            if (seen > 0 && seen >= p * n) {
+                return (1L << i) / 1e3;
+            }
+        }
+        return 0.0;
+    }
+
+    /**
+     * @return the number of waits in each bucket; bucket i holds the waits
+     *         shorter than 2^i microseconds that are not in bucket i-1
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+        }
+        return counts;
+    }
+
+    /** Forgets all recorded waits. */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets.set(i, 0);
+        }
+        this.totalNanos.set(0);
+        this.maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.3fms p50<=%.3fms p99<=%.3fms max=%.3fms",
+                getCount(), getMean(), getPercentile(0.5), getPercentile(0.99), getMax());
+    }
+}
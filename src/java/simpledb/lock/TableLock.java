@@ -0,0 +1,132 @@
+package simpledb.lock;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * TableLock is the lock on a whole table (a DbFile), held in any
+ * {@link LockMode}. A transaction holds it in at most one mode; asking for
+ * another mode converts the lock to the combination of both.
+ * <p>
+ * Transactions take a table lock once per table rather than once per page,
+ * so unlike page locks it has no lock-free fast path: all state is guarded
+ * by the monitor. Like page locks, a table lock is retired by the last
+ * transaction releasing it while nobody waits, and a retired lock can no
+ * longer be acquired.
+ *
+ * @Threadsafe
+ */
+class TableLock implements WaitableLock {
+
+    final int tableId;
+    private final Map<TransactionId, LockMode> holders = new HashMap<TransactionId, LockMode>();
+    private int waiting;
+    private boolean retired;
+
+    TableLock(int tableId) {
+        this.tableId = tableId;
+    }
+
+    /**
+     * @return the mode the transaction holds this lock in, or null
+     */
+    synchronized LockMode mode(TransactionId tid) {
+        return this.holders.get(tid);
+    }
+
+    /**
+     * Acquires this lock in the given mode, or converts the mode it is held
+     * in, waiting while other transactions hold it in incompatible modes.
+     *
+     * @return the mode the transaction holds the lock in now, or null if the
+     *         lock is retired
+     * @throws TransactionAbortedException if the wait was aborted by the lock
+     *         manager, see {@link LockManager#checkWait}
+     */
+    synchronized LockMode lock(TransactionId tid, LockMode mode, LockManager manager)
+            throws TransactionAbortedException {
+        if (this.retired) {
+            return null;
+        }
+        LockMode held = this.holders.get(tid);
+        LockMode wanted = held == null ? mode : held.combine(mode);
+        if (wanted == held) {
+            return held;
+        }
+        if (!blockers(tid, wanted).isEmpty()) {
+            LockManager.Waiter w = manager.startWait(tid, this, wanted);
+            this.waiting++;
+            try {
+                while (!blockers(tid, wanted).isEmpty()) {
+                    this.wait(manager.checkWait(w));
+                }
+            } catch (InterruptedException e) {
+                throw new TransactionAbortedException("interrupted while waiting for a lock");
+            } finally {
+                this.waiting--;
+                manager.endWait(w);
+            }
+        }
+        this.holders.put(tid, wanted);
+        return wanted;
+    }
+
+    /**
+     * Like {@link #lock}, but fails instead of waiting.
+     *
+     * @return the mode the transaction holds the lock in now, or null if it
+     *         would have to wait or the lock is retired
+     */
+    synchronized LockMode tryLock(TransactionId tid, LockMode mode) {
+        if (this.retired) {
+            return null;
+        }
+        LockMode held = this.holders.get(tid);
+        LockMode wanted = held == null ? mode : held.combine(mode);
+        if (wanted != held) {
+            if (!blockers(tid, wanted).isEmpty()) {
+                return null;
+            }
+            this.holders.put(tid, wanted);
+        }
+        return wanted;
+    }
+
+    /**
+     * Releases the lock held by the transaction, if any.
+     *
+     * @return true if the lock is now retired and must be dropped
+     */
+    synchronized boolean unlock(TransactionId tid) {
+        if (this.holders.remove(tid) == null) {
+            return false;
+        }
+        if (this.waiting > 0) {
+            notifyAll();
+            return false;
+        }
+        this.retired = this.holders.isEmpty();
+        return this.retired;
+    }
+
+    @Override
+    public synchronized Set<TransactionId> blockers(TransactionId tid, LockMode mode) {
+        Set<TransactionId> blockers = new HashSet<TransactionId>();
+        for (Map.Entry<TransactionId, LockMode> e : this.holders.entrySet()) {
+            if (!e.getKey().equals(tid) && !e.getValue().isCompatibleWith(mode)) {
+                blockers.add(e.getKey());
+            }
+        }
+        return blockers;
+    }
+
+    @Override
+    public LockManager.PageCategory category() {
+        return LockManager.PageCategory.TABLE;
+    }
+}
@@ -0,0 +1,50 @@
+package simpledb.lock;
+
+import simpledb.common.Database;
+import simpledb.transaction.TransactionId;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * VictimPolicy decides which transaction of a deadlock cycle is aborted to
+ * break it. Every transaction in the cycle is blocked waiting for a lock, and
+ * only the victim's wait fails; the others keep waiting.
+ * <p>
+ * The policies here break ties by aborting the youngest transaction, the one
+ * that started last and so has probably done the least work.
+ *
+ * @see LockManager#setVictimPolicy
+ */
+public interface VictimPolicy {
+
+    /**
+     * Choose the transaction to abort among the transactions of a cycle.
+     *
+     * @param cycle the transactions waiting for each other, at least one
+     * @param lockManager the lock manager the transactions wait in
+     * @return one of the transactions in cycle
+     */
+    TransactionId chooseVictim(List<TransactionId> cycle, LockManager lockManager);
+
+    Comparator<TransactionId> BY_AGE = Comparator.comparingLong(TransactionId::getStartTimestamp)
+            .thenComparingLong(TransactionId::getId);
+
+    /** Aborts the transaction that started last. */
+    VictimPolicy YOUNGEST = (cycle, lockManager) -> cycle.stream().max(BY_AGE).get();
+
+    /** Aborts the transaction holding the fewest locks. */
+    VictimPolicy FEWEST_LOCKS = (cycle, lockManager) -> cycle.stream()
+            .min(Comparator.<TransactionId>comparingInt(lockManager::getLockCount)
+                    .thenComparing(BY_AGE.reversed()))
+            .get();
+
+    /**
+     * Aborts the transaction that has written the fewest bytes to the log,
+     * which is the cheapest one to roll back.
+     */
+    VictimPolicy LEAST_LOG = (cycle, lockManager) -> cycle.stream()
+            .min(Comparator.<TransactionId>comparingLong(tid -> Database.getLogFile().getLogBytes(tid))
+                    .thenComparing(BY_AGE.reversed()))
+            .get();
+}
@@ -0,0 +1,27 @@
+package simpledb.lock;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.Set;
+
+/**
+ * WaitableLock is a lock transactions can block on: a page lock or a table
+ * lock. The LockManager tracks blocked transactions through it, to handle
+ * deadlocks and to keep wait-time statistics.
+ * <p>
+ * Threads block in the lock's monitor, so waking the waiters of a lock is
+ * a notifyAll() on it.
+ */
+interface WaitableLock {
+
+    /**
+     * @return the transactions other than tid whose hold on this lock keeps
+     *         tid from getting it in the given mode; a copy
+     */
+    Set<TransactionId> blockers(TransactionId tid, LockMode mode);
+
+    /**
+     * @return the category wait times on this lock are recorded under
+     */
+    LockManager.PageCategory category();
+}
@@ -11,11 +11,19 @@ import simpledb.common.Permissions;
 
 import simpledb.common.DbException;
 import simpledb.lock.LockManager;
+import simpledb.lock.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
@@ -26,6 +34,12 @@ import java.util.*;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Resident pages live in frames of a concurrent page table. A hit only reads
+ * the table; a miss reserves a frame (evicting another page if the pool is
+ * full) under the pool monitor, and then reads the page from disk holding
+ * nothing but that frame's latch, so misses on different pages load in
+ * parallel and never stall hits on other pages.
  *
  * @Threadsafe, all fields are final
  */
@@ -42,22 +56,83 @@ public class BufferPool {
      constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /**
+     * A slot of the page table. page is null while the page is being read
+     * from disk; the reading thread holds the write latch until it is done.
+     * A frame with a positive pin count is never evicted.
+     */
+    private static class Frame {
+        volatile Page page;
+        final AtomicInteger pinCount = new AtomicInteger();
+        final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+        /**
+         * Waits until the frame is loaded.
+         * @return the page, or null if loading it failed
+         */
+        Page awaitPage() {
+            Page p = this.page;
+            if (p != null) {
+                return p;
+            }
+            this.latch.readLock().lock();
+            try {
+                return this.page;
+            } finally {
+                this.latch.readLock().unlock();
+            }
+        }
+    }
+
     private final int numPages;
-    private Map<PageId, Page> bp_list;
+    private final Map<PageId, Frame> pageTable;
+    private final ReplacementPolicy policy; // protected by itself
+
+    // hit-rate counters, see getHitCount()/getMissCount()/getEvictionCount()
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+
+    // reads pages for prefetchPages(); its thread exits when idle
+    private ThreadPoolExecutor prefetcher;
+
+    private final LockManager lockManager;
 
+    // committed page images kept for snapshot transactions
+    private final PageVersions versions = new PageVersions();
 
-    private LockManager lockManager;
+    // pages flushed before their transaction committed, per transaction
+    private final Map<TransactionId, Set<PageId>> flushedEarly = new ConcurrentHashMap<>();
+
+    // pins taken through pinPage(), per transaction and page
+    private final Map<TransactionId, Map<PageId, Integer>> pinsByTid;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * page replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockReplacementPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to pick the pages to evict.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy; it must be a fresh instance
+     *               that is not used by another BufferPool.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         // some code goes here
         this.numPages = numPages;
-        this.bp_list = new HashMap<>(numPages);
+        this.pageTable = new ConcurrentHashMap<>(numPages);
+        this.policy = policy;
         this.lockManager = new LockManager();
+        this.pinsByTid = new ConcurrentHashMap<>();
     }
 
     public static int getPageSize() {
@@ -91,6 +166,143 @@ public class BufferPool {
      * @throws IOException
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
+        return this.fetchPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Like getPage(), but also pins the page: it stays in the pool until
+     * unpinPage() is called for it by the same transaction. Iterators that
+     * hand out tuples of a page pin it for as long as they read from it, so
+     * the page cannot be evicted underneath them.
+     * <p>
+     * Pins are counted, so a page pinned twice must be unpinned twice. Pins
+     * a transaction still holds when it completes are released then.
+     *
+     * @param tid the ID of the transaction pinning the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
+        if (this.versions.isSnapshot(tid)) {
+            // a private copy, which needs no pin
+            return this.fetchSnapshotPage(tid, pid, perm);
+        }
+        Page page = this.fetchPage(tid, pid, perm, true);
+        this.pinsOf(tid).merge(pid, 1, Integer::sum);
+        return page;
+    }
+
+    /**
+     * Releases a pin taken by pinPage(). Pages the transaction has not pinned
+     * are ignored.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Map<PageId, Integer> pins = this.pinsByTid.get(tid);
+        if (pins == null) {
+            return;
+        }
+        Integer count = pins.get(pid);
+        if (count == null) {
+            return;
+        }
+        if (count == 1) {
+            pins.remove(pid);
+        } else {
+            pins.put(pid, count - 1);
+        }
+        this.unpinFrame(pid, 1);
+    }
+
+    /**
+     * @return the number of pins currently held on the page by all
+     *         transactions, or 0 if the page is not in the pool
+     */
+    public int getPinCount(PageId pid) {
+        Frame frame = this.pageTable.get(pid);
+        return frame == null ? 0 : frame.pinCount.get();
+    }
+
+    private Map<PageId, Integer> pinsOf(TransactionId tid) {
+        return this.pinsByTid.computeIfAbsent(tid, k -> new ConcurrentHashMap<>());
+    }
+
+    private void unpinFrame(PageId pid, int count) {
+        Frame frame = this.pageTable.get(pid);
+        if (frame != null) {
+            frame.pinCount.updateAndGet(n -> Math.max(0, n - count));
+        }
+    }
+
+    /** Releases the pins a transaction did not release itself. */
+    private void releasePins(TransactionId tid) {
+        Map<PageId, Integer> pins = this.pinsByTid.remove(tid);
+        if (pins != null) {
+            for (Map.Entry<PageId, Integer> e : pins.entrySet()) {
+                this.unpinFrame(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private Page fetchPage(TransactionId tid, PageId pid, Permissions perm, boolean pin) throws TransactionAbortedException, DbException {
+        if (this.versions.isSnapshot(tid)) {
+            return this.fetchSnapshotPage(tid, pid, perm);
+        }
+        this.lockPage(tid, pid, perm);
+        while (true) {
+            Frame frame = this.pageTable.get(pid);
+            if (frame != null) {
+                Page page = frame.awaitPage();
+                if (page != null) {
+                    this.hits.incrementAndGet();
+                    synchronized (this.policy) {
+                        // the evictor decides under the policy lock too, so
+                        // a frame that is still mapped here can be pinned
+                        // safely; don't let the policy track a page
+                        // discarded meanwhile
+                        if (this.pageTable.get(pid) == frame) {
+                            this.policy.recordAccess(pid);
+                            if (pin) {
+                                frame.pinCount.incrementAndGet();
+                            }
+                        } else if (pin) {
+                            continue;
+                        }
+                    }
+                    return page;
+                }
+                // the load failed or the frame was dropped meanwhile; retry
+                continue;
+            }
+
+            Frame loading = new Frame();
+            loading.pinCount.incrementAndGet();
+            loading.latch.writeLock().lock();
+            try {
+                if (this.reserveFrame(pid, loading)) {
+                    return this.loadPage(tid, pid, perm, loading, pin);
+                }
+            } finally {
+                loading.latch.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Acquires the lock getPage() takes on a page with the given permissions,
+     * without reading the page. Snapshot transactions take no locks, so this
+     * does nothing for them.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param perm the permissions the page will be requested with
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
+        if (this.versions.isSnapshot(tid)) {
+            return;
+        }
         if (perm == Permissions.READ_WRITE) {
             this.lockManager.acquireWriteLock(tid, pid);
         } else {
@@ -99,31 +311,308 @@ public class BufferPool {
             }
             this.lockManager.acquireReadLock(tid, pid);
         }
-            if (this.bp_list.containsKey(pid)) {
-                Page newpage = this.bp_list.get(pid);
-                this.discardPage(pid);
-                this.bp_list.put(pid, newpage);
-                return newpage;
-            } else {
-                Page newpage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                if (this.bp_list.size() >= this.numPages) {
-                    this.evictPage();
-                    if (perm == Permissions.READ_WRITE) {
-                        newpage.markDirty(true, tid);
+    }
+
+    /**
+     * Returns the page as the given snapshot transaction sees it, without
+     * locking it. The page is a copy the transaction must not modify.
+     */
+    private Page fetchSnapshotPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (perm != Permissions.READ_ONLY) {
+            throw new DbException("snapshot transactions are read-only");
+        }
+        while (true) {
+            Frame frame = this.pageTable.get(pid);
+            if (frame == null) {
+                Frame loading = new Frame();
+                loading.pinCount.incrementAndGet();
+                loading.latch.writeLock().lock();
+                try {
+                    if (this.reserveFrame(pid, loading)) {
+                        this.loadPage(tid, pid, perm, loading, false);
                     }
-                    this.bp_list.put(pid, newpage);
-                    return newpage;
-                }else{
-                    if (perm == Permissions.READ_WRITE) {
-                        newpage.markDirty(true, tid);
+                } finally {
+                    loading.latch.writeLock().unlock();
+                }
+                continue;
+            }
+            // commits replace the before-image under the write latch, after
+            // saving the version older snapshots read
+            frame.latch.readLock().lock();
+            try {
+                Page page = frame.page;
+                if (page == null) {
+                    // the load failed; retry
+                    continue;
+                }
+                this.hits.incrementAndGet();
+                synchronized (this.policy) {
+                    if (this.pageTable.get(pid) == frame) {
+                        this.policy.recordAccess(pid);
                     }
-                    this.bp_list.put(pid, newpage);
-                    return newpage;
                 }
+                Page version = this.versions.read(tid, pid);
+                return version != null ? version : page.getBeforeImage();
+            } finally {
+                frame.latch.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Begins a snapshot for the given transaction. Until it completes, the
+     * transaction reads every page as of the last commit before this call,
+     * takes no locks, and may not modify pages: it never blocks, nor is it
+     * blocked by, writers.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        this.versions.begin(tid);
+    }
+
+    /**
+     * @return the number of committed page images kept for running
+     *         snapshot transactions
+     */
+    public int getVersionCount() {
+        return this.versions.getVersionCount();
+    }
+
+    /**
+     * Installs an empty frame, pinned while it loads, for pid in the page table, evicting a
+     * page first if the pool is full.
+     *
+     * @return false if another thread installed a frame for pid first
+     */
+    private synchronized boolean reserveFrame(PageId pid, Frame frame) throws DbException {
+        if (this.pageTable.containsKey(pid)) {
+            return false;
+        }
+        if (this.pageTable.size() >= this.numPages) {
+            this.evictPage();
+        }
+        this.install(pid, frame);
+        return true;
+    }
+
+    /**
+     * Reads a page from disk into a frame reserved by reserveFrame(). The
+     * caller holds the frame's write latch.
+     */
+    private Page loadPage(TransactionId tid, PageId pid, Permissions perm, Frame frame, boolean pin) throws DbException {
+        this.misses.incrementAndGet();
+        Page newpage = null;
+        try {
+            newpage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } finally {
+            if (newpage == null) {
+                this.dropFrame(pid, frame);
+            }
+        }
+        if (newpage == null) {
+            throw new DbException("Page " + pid + " could not be read.");
+        }
+        if (perm == Permissions.READ_WRITE) {
+            newpage.markDirty(true, tid);
+        }
+        frame.page = newpage;
+        if (!pin) {
+            frame.pinCount.decrementAndGet();
+        }
+        return newpage;
+    }
+
+    /**
+     * Asynchronously reads pages that are not in the pool yet into it, so that
+     * a later getPage() finds them there. This is a hint: pages are only
+     * loaded while there is room for them, at most half of the pool is used
+     * per call, and no locks are taken, since the pages are read but not
+     * handed to any transaction. A getPage() for a page that is still being
+     * prefetched waits for it instead of reading it again.
+     *
+     * @param pids the pages to prefetch, all of them from the same table, in
+     *             the order they should be read
+     */
+    public void prefetchPages(List<PageId> pids) {
+        int limit = Math.min(pids.size(), this.numPages / 2);
+        if (limit == 0) {
+            return;
+        }
+        List<PageId> batch = new ArrayList<>(pids.subList(0, limit));
+        this.prefetcher().execute(() -> this.loadAhead(batch));
+    }
+
+    private synchronized ThreadPoolExecutor prefetcher() {
+        if (this.prefetcher == null) {
+            this.prefetcher = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, "BufferPool-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            this.prefetcher.allowCoreThreadTimeOut(true);
+        }
+        return this.prefetcher;
+    }
+
+    private void loadAhead(List<PageId> pids) {
+        List<PageId> reserved = new ArrayList<>();
+        List<Frame> frames = new ArrayList<>();
+        try {
+            for (PageId pid : pids) {
+                Frame frame = new Frame();
+                frame.pinCount.incrementAndGet();
+                frame.latch.writeLock().lock();
+                boolean full = false;
+                boolean installed;
+                try {
+                    installed = this.reserveFrame(pid, frame);
+                } catch (DbException e) {
+                    // every frame is dirty or pinned; prefetch what we have
+                    installed = false;
+                    full = true;
+                }
+                if (installed) {
+                    reserved.add(pid);
+                    frames.add(frame);
+                } else {
+                    frame.latch.writeLock().unlock();
+                }
+                if (full) {
+                    break;
+                }
+            }
+            if (reserved.isEmpty()) {
+                return;
+            }
+            List<Page> pages = null;
+            try {
+                pages = Database.getCatalog().getDatabaseFile(reserved.get(0).getTableId()).readPages(reserved);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            for (int i = 0; i < reserved.size(); i++) {
+                Frame frame = frames.get(i);
+                Page page = pages == null ? null : pages.get(i);
+                if (page == null) {
+                    this.dropFrame(reserved.get(i), frame);
+                } else {
+                    frame.page = page;
+                    frame.pinCount.decrementAndGet();
+                    this.prefetches.incrementAndGet();
+                }
+            }
+        } finally {
+            for (Frame frame : frames) {
+                frame.latch.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Puts a page into the cache, replacing any other version of it, and
+     * reports the access to the replacement policy.
+     */
+    private synchronized void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Frame frame = this.pageTable.get(pid);
+        if (frame == null) {
+            if (this.pageTable.size() >= this.numPages) {
+                this.evictPage();
+            }
+            frame = new Frame();
+            frame.page = page;
+            this.install(pid, frame);
+        } else {
+            frame.page = page;
+            synchronized (this.policy) {
+                this.policy.recordAccess(pid);
+            }
+        }
+    }
 
+    private void install(PageId pid, Frame frame) {
+        synchronized (this.policy) {
+            this.pageTable.put(pid, frame);
+            this.policy.recordAccess(pid);
+        }
+    }
 
+    private void dropFrame(PageId pid, Frame frame) {
+        synchronized (this.policy) {
+            if (this.pageTable.remove(pid, frame)) {
+                this.policy.remove(pid);
             }
+        }
+    }
+
+    /**
+     * @return the maximum number of pages in this buffer pool
+     */
+    public int getNumPages() {
+        return this.numPages;
+    }
+
+    /**
+     * @return the number of getPage() calls that found the page in the pool
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of getPage() calls that had to read the page from disk
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of pages evicted to make room for other pages
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
     }
+
+    /**
+     * @return the number of pages loaded by prefetchPages()
+     */
+    public long getPrefetchCount() {
+        return this.prefetches.get();
+    }
+
+    /**
+     * @return the fraction of getPage() calls served from the pool, or 0 if
+     *         no page has been requested yet
+     */
+    public double getHitRate() {
+        long h = this.hits.get();
+        long total = h + this.misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Resets the hit, miss, eviction and prefetch counters to zero. */
+    public void resetStats() {
+        this.hits.set(0);
+        this.misses.set(0);
+        this.evictions.set(0);
+        this.prefetches.set(0);
+    }
+
+    /**
+     * @return the replacement policy used by this buffer pool
+     */
+    public ReplacementPolicy getReplacementPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * @return the lock manager of this buffer pool, e.g. to configure
+     *         deadlock handling or read its statistics
+     */
+    public LockManager getLockManager() {
+        return this.lockManager;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -144,13 +633,7 @@ public class BufferPool {
     }
 
     public boolean holdsLock(TransactionId tid, PageId pid) {
-        boolean result = false;
-        if(this.lockManager.tid_pageids.containsKey(tid)){
-            if(this.lockManager.tid_pageids.get(tid).contains(pid)){
-                result = true;
-            }
-        }
-        return result;
+        return this.lockManager.holdsLock(tid, pid);
     }
 
     /**
@@ -163,30 +646,61 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
-        Set<PageId> pages;
-        if (this.lockManager.tid_pageids.containsKey(tid)) {
-             pages = lockManager.tid_pageids.get(tid);
-        }
-        else {
-            pages = null;
-        }
-        if (pages == null || pages.isEmpty()) {
-            // The transaction does not hold any pages, so there is nothing to do.
+        if (this.versions.end(tid)) {
             return;
         }
+        this.releasePins(tid);
+        Set<PageId> early = this.flushedEarly.remove(tid);
         // Flush or discard the pages based on the commit parameter.
         if (commit) {
-            for (PageId page : pages) {
+            List<PageId> dirty = this.pagesDirtiedBy(tid);
+            try {
+                if (!dirty.isEmpty()) {
+                    // log all pages, then force once for all of them, and
+                    // together with other committing transactions
+                    long lsn = 0;
+                    for (PageId pid : dirty) {
+                        lsn = Math.max(lsn, this.logPage(pid));
+                    }
+                    Database.getLogFile().forceUpTo(lsn);
+                }
+                this.versions.commitStart();
                 try {
-                    flushPage(page);
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    for (PageId pid : dirty) {
+                        this.flushPage(pid, true, true);
+                    }
+                    if (early != null) {
+                        Set<PageId> flushed = new HashSet<>(dirty);
+                        for (PageId pid : early) {
+                            if (!flushed.contains(pid)) {
+                                this.installCommitted(pid);
+                            }
+                        }
+                    }
+                } finally {
+                    this.versions.commitEnd();
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         } else {
-            for (PageId page : pages) {
+            // the pages the transaction changed, in the pool or on disk
+            Set<PageId> changed = new HashSet<>(this.pagesDirtiedBy(tid));
+            if (early != null) {
+                changed.addAll(early);
+            }
+            for (PageId page : this.pagesWritableBy(tid)) {
                 this.discardPage(page);
             }
+            for (PageId pid : changed) {
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).pageRolledBack(pid);
+            }
+        }
+        if (early != null) {
+            // the pages on disk are committed, or rolled back on abort
+            for (PageId pid : early) {
+                this.versions.completed(pid);
+            }
         }
         // Release all locks held by the transaction.
         lockManager.releaseAllLocks(tid);
@@ -211,19 +725,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> pageArray = file.insertTuple(tid, t);
-        for (Page pg : pageArray) {
-            pg.markDirty(true, tid);
-            if (!this.bp_list.containsKey(pg.getId()) && this.bp_list.size() >= this.numPages) {
-                this.evictPage();
-                this.discardPage(pg.getId());
-                this.bp_list.put(pg.getId(), pg);
-            }
-            else if(!this.bp_list.containsKey(pg.getId())){
-                this.discardPage(pg.getId());
-                this.bp_list.put(pg.getId(), pg);
-            }
-        }
+        this.cacheDirtyPages(tid, file.insertTuple(tid, t));
     }
     /**
      * Remove the specified tuple from the buffer pool.
@@ -243,17 +745,23 @@ public class BufferPool {
         // not necessary for lab1
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> pageArray = file.deleteTuple(tid, t);
+        this.cacheDirtyPages(tid, file.deleteTuple(tid, t));
+    }
 
-        for (Page pg : pageArray) {
+    /**
+     * Marks pages a DbFile modified on behalf of a transaction as dirty and
+     * adds them to the cache, replacing any existing versions of them, like
+     * insertTuple() and deleteTuple() do with the pages the file returns.
+     * For files that modify pages in other operations, such as bulk loads.
+     *
+     * @param tid the transaction that modified the pages
+     * @param pages the modified pages
+     */
+    public void cacheDirtyPages(TransactionId tid, Collection<Page> pages) throws DbException {
+        for (Page pg : pages) {
             pg.markDirty(true, tid);
-            if (!this.bp_list.containsKey(pg.getId()) && this.bp_list.size() >= this.numPages) {
-                this.evictPage();
-            }
-            this.discardPage(pg.getId());
-            this.bp_list.put(pg.getId(), pg);
+            this.cachePage(pg);
         }
-
     }
     /**
      * Flush all dirty pages to disk.
@@ -262,14 +770,11 @@ public class BufferPool {
      * @throws DbException
      * @throws TransactionAbortedException
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pageid :this.bp_list.keySet()){
-            Page page = bp_list.get(pageid);
-            if (page.isDirty() != null){
-                this.flushPage(pageid);
-            }
+        for (PageId pageid : this.pageTable.keySet()) {
+            this.flushPage(pageid);
         }
     }
     /** Remove the specific page id from the buffer pool.
@@ -282,11 +787,15 @@ public class BufferPool {
      * @throws DbException
      * @throws TransactionAbortedException
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab
         if (pid != null) {
-            this.bp_list.remove(pid);
+            synchronized (this.policy) {
+                if (this.pageTable.remove(pid) != null) {
+                    this.policy.remove(pid);
+                }
+            }
         }
     }
     /**
@@ -295,55 +804,181 @@ public class BufferPool {
      * @throws DbException
      * @throws TransactionAbortedException
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
+        this.flushPage(pid, false, false);
+    }
+
+    /**
+     * Writes the update record of a dirty page to the log, without forcing it.
+     *
+     * @return the pageLSN of the page, or 0 if it is not cached
+     */
+    private long logPage(PageId pid) throws IOException {
+        Frame frame = this.pageTable.get(pid);
+        Page pg = frame == null ? null : frame.page;
+        if (pg == null) {
+            return 0;
+        }
+        if (pg.isDirty() != null) {
+            pg.setPageLSN(Database.getLogFile().logWrite(pg.isDirty(), pg.getBeforeImage(), pg));
+        }
+        return pg.getPageLSN();
+    }
+
+    /**
+     * Flushes a certain page to disk; when the page is flushed as part of a
+     * commit, its flushed image also becomes its before-image, and the image
+     * it replaces is kept for the snapshots that still read it.
+     *
+     * @param logged whether the update record of the page was logged by
+     *               logPage() before; it is forced here if it was not
+     *               forced yet
+     */
+    private void flushPage(PageId pid, boolean commit, boolean logged) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page pg = this.bp_list.get(pid);
-        if (this.bp_list.containsKey(pid)) {
+        Frame frame = this.pageTable.get(pid);
+        if (frame == null) {
+            return;
+        }
+        // the write latch keeps two threads from writing the same page at once
+        frame.latch.writeLock().lock();
+        try {
+            Page pg = frame.page;
+            if (pg == null) {
+                return;
+            }
             TransactionId dirty = pg.isDirty();
             if (dirty != null) {
-                Database.getLogFile().logWrite(dirty, pg.getBeforeImage(), pg);
-                Database.getLogFile().force();
+                if (commit) {
+                    this.versions.save(pid, this.versions.committed(pid, pg.getBeforeImage()));
+                } else {
+                    // write-ahead: the log must be on disk up to the
+                    // page's last record before the page is
+                    if (!logged) {
+                        pg.setPageLSN(Database.getLogFile().logWrite(dirty, pg.getBeforeImage(), pg));
+                    }
+                    Database.getLogFile().forceUpTo(pg.getPageLSN());
+                    // once the page is evicted, snapshots cannot read its
+                    // committed image from disk
+                    this.versions.writeUncommitted(pid, pg.getBeforeImage());
+                    this.flushedEarly.computeIfAbsent(dirty, k -> ConcurrentHashMap.newKeySet()).add(pid);
+                }
                 DbFile hpFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
                 hpFile.writePage(pg);
+                Database.getLogFile().pageWritten(pid);
                 pg.markDirty(false, null);
+                if (commit) {
+                    pg.setBeforeImage();
+                }
             }
+        } finally {
+            frame.latch.writeLock().unlock();
+        }
+    }
+    /**
+     * Makes the image of a page flushed before its transaction committed,
+     * and clean since, its before-image, like flushPage() does on commit.
+     */
+    private void installCommitted(PageId pid) {
+        Frame frame = this.pageTable.get(pid);
+        if (frame == null) {
+            // evicted: the page on disk is committed now, and older
+            // snapshots read the image it replaces
+            Page committed = this.versions.committed(pid, null);
+            if (committed != null) {
+                this.versions.save(pid, committed);
+            }
+            return;
+        }
+        frame.latch.writeLock().lock();
+        try {
+            Page pg = frame.page;
+            if (pg != null && pg.isDirty() == null) {
+                this.versions.save(pid, this.versions.committed(pid, pg.getBeforeImage()));
+                pg.setBeforeImage();
+            }
+        } finally {
+            frame.latch.writeLock().unlock();
         }
-
     }
+
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        // log all pages first, so that one force covers them, like a commit
+        List<PageId> dirty = this.pagesDirtiedBy(tid);
+        long lsn = 0;
+        for (PageId pid : dirty) {
+            lsn = Math.max(lsn, this.logPage(pid));
+        }
+        Database.getLogFile().forceUpTo(lsn);
+        for (PageId pid : dirty) {
+            this.flushPage(pid, false, true);
+        }
     }
+
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
-     * @throws TransactionAbortedException
-     * @throws IOException
+     * Returns the pages the given transaction may have modified: the pages
+     * it holds page locks on, and the pages in the pool of the tables it
+     * holds X table locks on. Operators modify pages in place before they
+     * are marked dirty, so an aborted operation can leave changes in pages
+     * that are not dirty.
+     */
+    private Set<PageId> pagesWritableBy(TransactionId tid) {
+        Set<PageId> pages = this.lockManager.getLockedPages(tid);
+        for (PageId pid : this.pageTable.keySet()) {
+            if (this.lockManager.getTableLockMode(tid, pid.getTableId()) == LockMode.X) {
+                pages.add(pid);
+            }
+        }
+        return pages;
+    }
+
+    /** Returns the pages in the pool that are dirtied by the given transaction. */
+    private List<PageId> pagesDirtiedBy(TransactionId tid) {
+        List<PageId> pages = new ArrayList<>();
+        for (Map.Entry<PageId, Frame> e : this.pageTable.entrySet()) {
+            Page page = e.getValue().page;
+            if (page != null && tid.equals(page.isDirty())) {
+                pages.add(e.getKey());
+            }
+        }
+        return pages;
+    }
+    /**
+     * Discards a page from the buffer pool, as chosen by the replacement policy.
+     * Only clean pages are evicted (NO STEAL), so nothing has to be written.
+     * Pinned frames and frames still being read from disk are skipped.
+     * @throws DbException if every page in the pool is dirty or pinned
      */
     private synchronized void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
 
-        Page lruPage = null;
-
-        for (Page page: this.bp_list.values()){
-            if(page.isDirty()== null){
-                lruPage = page;
+        PageId victim;
+        synchronized (this.policy) {
+            // NO STEAL: only clean pages may leave the pool
+            victim = this.policy.evict(pid -> {
+                Frame frame = this.pageTable.get(pid);
+                if (frame == null) {
+                    return true;
+                }
+                Page page = frame.page;
+                return page != null && frame.pinCount.get() == 0 && page.isDirty() == null;
+            });
+            if (victim != null) {
+                // drop it while still holding the policy lock, so that no
+                // hit can pin the victim after it was chosen
+                this.pageTable.remove(victim);
             }
         }
 
-        if (lruPage == null) {
+        if (victim == null) {
             throw new DbException("There are no pages to evict in the buffer pool.");
-        } else {
-            try {
-                this.flushPage(lruPage.getId());
-                this.discardPage(lruPage.getId());
-            } catch (IOException e) {
-                throw new DbException("Page could not be flushed.");
-            }
         }
+        this.evictions.incrementAndGet();
     }
 }
@@ -0,0 +1,90 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Every tracked page sits in a slot of a
+ * circular array together with a reference bit that is set on each access.
+ * To find a victim, the clock hand sweeps the slots: a page with its bit set
+ * gets its bit cleared and is skipped, the first page found with a clear bit
+ * is evicted. Accesses are O(1), and evictions are amortized O(1).
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private final Map<PageId, Integer> slotOf;
+    private final List<PageId> slots;
+    private final BitSet referenced;
+    private final Deque<Integer> freeSlots;
+    private int hand;
+
+    public ClockReplacementPolicy() {
+        this.slotOf = new HashMap<>();
+        this.slots = new ArrayList<>();
+        this.referenced = new BitSet();
+        this.freeSlots = new ArrayDeque<>();
+        this.hand = 0;
+    }
+
+    public void recordAccess(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced.set(slot);
+            return;
+        }
+        // new pages start with a clear bit, so a page touched only once
+        // (e.g. by a sequential scan) is the first to go
+        if (freeSlots.isEmpty()) {
+            slot = slots.size();
+            slots.add(pid);
+        } else {
+            slot = freeSlots.pop();
+            slots.set(slot, pid);
+            referenced.clear(slot);
+        }
+        slotOf.put(pid, slot);
+    }
+
+    public void remove(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            slots.set(slot, null);
+            referenced.clear(slot);
+            freeSlots.push(slot);
+        }
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        if (slotOf.isEmpty()) {
+            return null;
+        }
+        // two full turns are enough: the first one clears every reference bit
+        for (int steps = 0; steps < 2 * slots.size(); steps++) {
+            int slot = hand;
+            hand = (hand + 1) % slots.size();
+            PageId pid = slots.get(slot);
+            if (pid == null) {
+                continue;
+            }
+            if (referenced.get(slot)) {
+                referenced.clear(slot);
+                continue;
+            }
+            if (evictable.test(pid)) {
+                remove(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return slotOf.size();
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb.storage;
+
+import simpledb.execution.Predicate;
+import simpledb.common.Type;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields, such as the
+ * key of a B+ tree keyed on more than one field. Composite fields compare
+ * lexicographically, field by field.
+ * <p>
+ * A composite field compared to a value with fewer fields, or to a single
+ * Field, compares only its leading fields to the value, so a prefix of a key
+ * matches all keys that start with it. An index on (customer_id, order_date)
+ * answers customer_id = 42 with an EQUALS predicate on IntField(42), and
+ * customer_id = 42 AND order_date &gt;= d with a GREATER_THAN_OR_EQ
+ * predicate on (42, d) that stops at the end of the prefix 42.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of the fields, in key order.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0) {
+            throw new IllegalArgumentException("a composite field needs at least one field");
+        }
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of fields in this composite field
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @param i The index of the field to return.
+     * @return the value of the i-th field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(fields[i]);
+        }
+        return sb.append(')').toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeField)) return false;
+        return Arrays.equals(((CompositeField) field).fields, fields);
+    }
+
+    /**
+     * Writes the fields one after another.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields) {
+            f.serialize(dos);
+        }
+    }
+
+    /**
+     * Compare the specified value to the leading fields of this Field, field
+     * by field; val is either a CompositeField or the value of the first
+     * field. LIKE compares for equality.
+     * Return semantics are as specified by Field.compare
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        int c = compareTo(val);
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return c == 0;
+            case NOT_EQUALS:
+                return c != 0;
+            case GREATER_THAN:
+                return c > 0;
+            case GREATER_THAN_OR_EQ:
+                return c >= 0;
+            case LESS_THAN:
+                return c < 0;
+            case LESS_THAN_OR_EQ:
+                return c <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as the leading
+     *         fields of this Field are less than, equal to or greater than val
+     */
+    private int compareTo(Field val) {
+        Field[] other = val instanceof CompositeField ? ((CompositeField) val).fields : new Field[] {val};
+        int n = Math.min(fields.length, other.length);
+        for (int i = 0; i < n; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i])) {
+                return -1;
+            }
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i])) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return the Type of the first field; a composite field has no Type of
+     * its own.
+     *
+     * @return the Type of the first field
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
@@ -8,6 +8,8 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -24,6 +26,60 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Creates a page of this file from its data, as returned by
+     * Page.getPageData(); the log uses it to rebuild the images of logged
+     * pages. The default calls the constructor of the page class that takes
+     * the page id and the data; files whose pages need more to be created
+     * should override this.
+     *
+     * @param pageClassName the name of the class of the page
+     * @param id the id of the page
+     * @param data the data of the page
+     * @throws IOException if the page cannot be created
+     */
+    default Page createPage(String pageClassName, PageId id, byte[] data) throws IOException {
+        try {
+            for (Constructor<?> c : Class.forName(pageClassName).getDeclaredConstructors()) {
+                if (c.getParameterCount() == 2 && c.getParameterTypes()[1] == byte[].class) {
+                    return (Page) c.newInstance(id, data);
+                }
+            }
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException
+                | InstantiationException e) {
+            throw new IOException("cannot create page of " + pageClassName, e);
+        }
+        throw new IOException("cannot create page of " + pageClassName);
+    }
+
+    /**
+     * Read several pages of this file from disk, e.g. to prefetch them into
+     * the buffer pool. Files that can read a run of pages more cheaply than
+     * one page at a time should override this.
+     *
+     * @param ids the pages to read, all of them belonging to this file
+     * @return the pages, in the order of ids; an entry is null if that page
+     *         could not be read
+     */
+    default List<Page> readPages(List<PageId> ids) {
+        List<Page> pages = new ArrayList<>(ids.size());
+        for (PageId id : ids) {
+            pages.add(readPage(id));
+        }
+        return pages;
+    }
+
+    /**
+     * Called when the changes a transaction made to a page of this file were
+     * rolled back, by an abort or by recovery. The default does nothing;
+     * files that keep information about their pages elsewhere, like the free
+     * space map of a HeapFile, should override this to update it.
+     *
+     * @param id the page that was rolled back
+     */
+    default void pageRolledBack(PageId id) {
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -73,6 +129,14 @@ public interface DbFile {
      */
     DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Releases the resources this file holds, such as open file handles. This
+     * is called when the file is removed from the Catalog; the file must stay
+     * usable afterwards and reacquire what it needs on its next use.
+     */
+    default void close() {
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
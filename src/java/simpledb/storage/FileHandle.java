@@ -0,0 +1,221 @@
+package simpledb.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileHandle is a long-lived FileChannel on the file backing a DbFile. Pages
+ * are read and written with positional I/O, which does not move a shared file
+ * pointer, so any number of threads can use the handle at once without
+ * seeking or locking.
+ * <p>
+ * The channel is opened on first use and reopened after {@link #close()}, so
+ * closing a handle (e.g. when the Catalog is cleared) never breaks a DbFile
+ * that is still referenced somewhere.
+ * <p>
+ * A handle can also be switched to memory-mapped mode, for tables that are
+ * only read. Reads then copy straight out of a read-only mapping of the file,
+ * without a system call per page, and writes fail.
+ *
+ * @Threadsafe
+ */
+public class FileHandle {
+
+    private final File f;
+    private volatile FileChannel channel;
+    private volatile boolean memoryMapped;
+    // the mapping in memory-mapped mode; null until the first read
+    private volatile MappedByteBuffer map;
+
+    public FileHandle(File f) {
+        this.f = f;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = this.channel;
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        synchronized (this) {
+            if (this.channel == null || !this.channel.isOpen()) {
+                try {
+                    this.channel = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                } catch (AccessDeniedException e) {
+                    this.channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+                }
+            }
+            return this.channel;
+        }
+    }
+
+    /**
+     * Reads bytes starting at the given offset until buf is full or the end
+     * of the file is reached.
+     *
+     * @return the number of bytes read
+     */
+    public int read(ByteBuffer buf, long offset) throws IOException {
+        if (this.memoryMapped) {
+            return readMapped(buf, offset);
+        }
+        int start = buf.position();
+        while (true) {
+            try {
+                FileChannel ch = channel();
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, offset + buf.position() - start) < 0) {
+                        break;
+                    }
+                }
+                return buf.position() - start;
+            } catch (ClosedChannelException e) {
+                // closed by close() under our feet; an interrupt is fatal
+                if (e instanceof ClosedByInterruptException) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private int readMapped(ByteBuffer buf, long offset) throws IOException {
+        MappedByteBuffer m = this.map;
+        if (m == null || offset + buf.remaining() > m.capacity()) {
+            m = remap();
+        }
+        if (offset >= m.capacity()) {
+            return 0;
+        }
+        int n = (int) Math.min(buf.remaining(), m.capacity() - offset);
+        // a duplicate has its own position, so threads don't interfere
+        ByteBuffer src = m.duplicate();
+        src.position((int) offset).limit((int) offset + n);
+        buf.put(src);
+        return n;
+    }
+
+    /** Maps the whole file, e.g. again after it has grown. */
+    private synchronized MappedByteBuffer remap() throws IOException {
+        while (true) {
+            try {
+                FileChannel ch = channel();
+                long size = ch.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException(f + " is too large to be memory-mapped");
+                }
+                if (this.map == null || this.map.capacity() < size) {
+                    this.map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                return this.map;
+            } catch (ClosedChannelException e) {
+                if (e instanceof ClosedByInterruptException) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Switches memory-mapped mode on or off. While it is on, the file is read
+     * through a read-only mapping and cannot be written.
+     */
+    public synchronized void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        this.map = null;
+    }
+
+    /**
+     * @return true if this handle is in memory-mapped mode
+     */
+    public boolean isMemoryMapped() {
+        return this.memoryMapped;
+    }
+
+    /**
+     * Reads exactly data.length bytes starting at the given offset.
+     *
+     * @throws EOFException if the file ends before data is full
+     */
+    public void readFully(byte[] data, long offset) throws IOException {
+        if (read(ByteBuffer.wrap(data), offset) < data.length) {
+            throw new EOFException("Read past end of " + f);
+        }
+    }
+
+    /**
+     * Writes all of data at the given offset, growing the file if needed.
+     */
+    public void write(byte[] data, long offset) throws IOException {
+        if (this.memoryMapped) {
+            throw new IOException(f + " is memory-mapped read-only");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (true) {
+            try {
+                FileChannel ch = channel();
+                while (buf.hasRemaining()) {
+                    ch.write(buf, offset + buf.position());
+                }
+                return;
+            } catch (ClosedChannelException e) {
+                if (e instanceof ClosedByInterruptException) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Cuts the file off after the given number of bytes.
+     */
+    public void truncate(long size) throws IOException {
+        if (this.memoryMapped) {
+            throw new IOException(f + " is memory-mapped read-only");
+        }
+        while (true) {
+            try {
+                channel().truncate(size);
+                return;
+            } catch (ClosedChannelException e) {
+                if (e instanceof ClosedByInterruptException) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends data to the end of the file.
+     *
+     * @return the offset data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long offset = f.length();
+        write(data, offset);
+        return offset;
+    }
+
+    /**
+     * Closes the channel and drops the mapping, if any. The handle stays
+     * usable and reopens the file the next time a page is read or written.
+     */
+    public synchronized void close() {
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.channel = null;
+        }
+        this.map = null;
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile are full, so that inserts
+ * can go straight to a page with room instead of scanning the file. It keeps
+ * one bit per page in a small file next to the table (the table's file name
+ * with ".fsm" appended), so the map survives restarts. The file is only
+ * created once a page fills up.
+ * <p>
+ * The map is a hint. A page not marked full may be full, which the inserting
+ * transaction finds out when it reads the page. Pages the map does not know
+ * about, e.g. in a table written by HeapFileEncoder, count as not full. A
+ * page is marked full by the insert that fills it; if that insert is rolled
+ * back, the HeapFile marks the page as having room again.
+ * <p>
+ * The map file starts with the length of the table file when the map was
+ * last updated. A map whose length does not match the table file is stale
+ * (the table was rewritten by something else); it is emptied when it is
+ * loaded, so that its old bits do not come back once the lengths match again.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final int HEADER_SIZE = 8;
+
+    private final File tableFile;
+    private final File mapFile;
+    private final FileHandle handle;
+    private BitSet full;
+    private boolean loaded;
+
+    /**
+     * @param tableFile the file of the HeapFile this map belongs to
+     */
+    public FreeSpaceMap(File tableFile) {
+        this.tableFile = tableFile;
+        this.mapFile = mapFileFor(tableFile);
+        this.handle = new FileHandle(mapFile);
+    }
+
+    /**
+     * @return the file the map of the given table file is kept in. Code that
+     *         creates a temporary table should clean this file up along with
+     *         the table, e.g. with deleteOnExit().
+     */
+    public static File mapFileFor(File tableFile) {
+        return new File(tableFile.getPath() + ".fsm");
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        full = new BitSet();
+        if (!mapFile.exists()) {
+            return;
+        }
+        try {
+            byte[] bytes = new byte[(int) mapFile.length()];
+            int n = handle.read(ByteBuffer.wrap(bytes), 0);
+            if (n < HEADER_SIZE || ByteBuffer.wrap(bytes).getLong() != tableFile.length()) {
+                handle.truncate(0);
+                writeHeader();
+                return;
+            }
+            full = BitSet.valueOf(ByteBuffer.wrap(bytes, HEADER_SIZE, n - HEADER_SIZE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the first page below numPages that is not known to be full, or
+     *         numPages if all of them are
+     */
+    public synchronized int firstPageWithSpace(int numPages) {
+        load();
+        return Math.min(full.nextClearBit(0), numPages);
+    }
+
+    /** Records that the page has no empty slots left. */
+    public synchronized void markFull(int pageNo) {
+        load();
+        if (!full.get(pageNo)) {
+            full.set(pageNo);
+            save(pageNo);
+        }
+    }
+
+    /** Records that the page has at least one empty slot. */
+    public synchronized void markHasSpace(int pageNo) {
+        load();
+        if (full.get(pageNo)) {
+            full.clear(pageNo);
+            save(pageNo);
+        }
+    }
+
+    /**
+     * Records that the table file changed size, e.g. because a page was
+     * appended, so that the map stays valid for it.
+     */
+    public synchronized void tableResized() {
+        if (mapFile.exists()) {
+            writeHeader();
+        }
+    }
+
+    private void writeHeader() {
+        try {
+            handle.write(ByteBuffer.allocate(HEADER_SIZE).putLong(tableFile.length()).array(), 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void save(int pageNo) {
+        if (mapFile.length() < HEADER_SIZE) {
+            writeHeader();
+        }
+        int index = pageNo / 8;
+        byte[] bits = full.get(index * 8, index * 8 + 8).toByteArray();
+        try {
+            handle.write(new byte[] { bits.length == 0 ? 0 : bits[0] }, HEADER_SIZE + index);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Releases the map file; it is reopened on next use. */
+    public void close() {
+        handle.close();
+    }
+
+    /** Closes and removes the map file, e.g. when its table is deleted. */
+    public synchronized void delete() {
+        close();
+        mapFile.delete();
+        full = null;
+        loaded = false;
+    }
+}
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -24,6 +25,9 @@ public class HeapFile implements DbFile {
 
     private File f;
     private TupleDesc td;
+    private final FileHandle handle;
+    private final FreeSpaceMap freeSpace;
+    private volatile int readAhead;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -36,6 +40,8 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.f = f;
         this.td = td;
+        this.handle = new FileHandle(f);
+        this.freeSpace = new FreeSpaceMap(f);
     }
 
     /**
@@ -81,10 +87,7 @@ public class HeapFile implements DbFile {
         byte[] data = new byte[pagesize];
 
         try {
-            RandomAccessFile randomaccessfile = new RandomAccessFile(f, "r");
-            randomaccessfile.seek(offset);
-            randomaccessfile.read(data);
-            randomaccessfile.close();
+            handle.read(ByteBuffer.wrap(data), offset);
             return new HeapPage((HeapPageId) pid, data);
         } catch (IOException e) {
             e.printStackTrace();
@@ -93,6 +96,45 @@ public class HeapFile implements DbFile {
         return null;
     }
 
+    /**
+     * Reads consecutive pages with a single positional read; other pages are
+     * read in runs of consecutive page numbers.
+     */
+    @Override
+    public List<Page> readPages(List<PageId> pids) {
+        List<Page> pages = new ArrayList<>(pids.size());
+        int pagesize = BufferPool.getPageSize();
+        try {
+            int start = 0;
+            while (start < pids.size()) {
+                int end = start + 1;
+                while (end < pids.size()
+                        && pids.get(end).getPageNumber() == pids.get(end - 1).getPageNumber() + 1) {
+                    end++;
+                }
+                byte[] run = new byte[(end - start) * pagesize];
+                long offset = (long) pagesize * pids.get(start).getPageNumber();
+                int read = handle.read(ByteBuffer.wrap(run), offset);
+                for (int i = start; i < end; i++) {
+                    if ((i - start + 1) * pagesize > read) {
+                        // past the end of the file
+                        pages.add(null);
+                        continue;
+                    }
+                    byte[] data = Arrays.copyOfRange(run, (i - start) * pagesize, (i - start + 1) * pagesize);
+                    pages.add(new HeapPage((HeapPageId) pids.get(i), data));
+                }
+                start = end;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            while (pages.size() < pids.size()) {
+                pages.add(null);
+            }
+        }
+        return pages;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
@@ -102,14 +144,38 @@ public class HeapFile implements DbFile {
         int pagesize = BufferPool.getPageSize();
         int pagenumber = pid.getPageNumber();
         long offset = (long) pagesize * pagenumber;
+        boolean grows = pagenumber >= numPages();
         try{
-            RandomAccessFile randomaccessfile = new RandomAccessFile(f, "rw");
-            randomaccessfile.seek(offset);
-            randomaccessfile.write(data);
-            randomaccessfile.close();
+            handle.write(data, offset);
         }catch(IOException e){
             e.printStackTrace();
         }
+        if (grows) {
+            freeSpace.tableResized();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void pageRolledBack(PageId pid) {
+        // the insert that filled the page may be gone; if the page is still
+        // full, the next insert finds out and marks it again
+        freeSpace.markHasSpace(pid.getPageNumber());
+    }
+
+    // see DbFile.java for javadocs
+    public void close() {
+        handle.close();
+        freeSpace.close();
+    }
+
+    /**
+     * Closes this HeapFile and removes its file and free space map from disk.
+     * The HeapFile must not be used afterwards.
+     */
+    public void delete() {
+        close();
+        f.delete();
+        freeSpace.delete();
     }
 
     /**
@@ -125,12 +191,17 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (isMemoryMapped()) {
+            throw new DbException("table " + getId() + " is memory-mapped read-only");
+        }
         ArrayList<Page> modifiedPages = new ArrayList<>();
         BufferPool bufferPool = Database.getBufferPool();
         int numPages = numPages();
-        boolean tupleInserted = false;
 
-        for (int i = 0; i < numPages && !tupleInserted; i++) {
+        // the free space map skips pages known to be full; a page it thinks
+        // has room may not, in which case it is told and asked again
+        for (int i = freeSpace.firstPageWithSpace(numPages); i < numPages;
+                i = freeSpace.firstPageWithSpace(numPages)) {
             HeapPageId pageId = new HeapPageId(getId(), i);
             HeapPage page = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_ONLY);
 
@@ -138,17 +209,19 @@ public class HeapFile implements DbFile {
                 page = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_WRITE);
                 page.insertTuple(t);
                 modifiedPages.add(page);
-                tupleInserted = true;
+                if (page.getNumEmptySlots() == 0) {
+                    freeSpace.markFull(i);
+                }
+                return modifiedPages;
             }
+            freeSpace.markFull(i);
         }
 
-        if (!tupleInserted) {
-            HeapPageId pageId = new HeapPageId(getId(), numPages);
-            HeapPage page = new HeapPage(pageId, HeapPage.createEmptyPageData());
-            page.insertTuple(t);
-            writePage(page);
-            modifiedPages.add(page);
-        }
+        HeapPageId pageId = new HeapPageId(getId(), numPages);
+        HeapPage page = new HeapPage(pageId, HeapPage.createEmptyPageData());
+        page.insertTuple(t);
+        writePage(page);
+        modifiedPages.add(page);
 
         return modifiedPages;
 
@@ -159,6 +232,9 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (isMemoryMapped()) {
+            throw new DbException("table " + getId() + " is memory-mapped read-only");
+        }
         PageId pid = t.getRecordId().getPageId();
         ArrayList<Page> modifiedPages = new ArrayList<>();
         for (int i = 0; i < numPages(); i++) {
@@ -166,12 +242,50 @@ public class HeapFile implements DbFile {
                 HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
                 page.deleteTuple(t);
                 modifiedPages.add(page);
+                freeSpace.markHasSpace(i);
             }
         }
         return modifiedPages;
     }
 
 
+    /**
+     * Switches this table into or out of memory-mapped mode. In that mode the
+     * table is read-only: pages are read from a mapping of the file, and
+     * inserts and deletes fail with a DbException. Reads still go through the
+     * BufferPool and take the usual locks.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.handle.setMemoryMapped(memoryMapped);
+    }
+
+    /**
+     * @return true if this table is in memory-mapped read-only mode
+     */
+    public boolean isMemoryMapped() {
+        return this.handle.isMemoryMapped();
+    }
+
+    /**
+     * Sets how many pages ahead of a sequential scan of this file are
+     * prefetched into the buffer pool. 0, the default, disables read-ahead.
+     *
+     * @param pages the read-ahead window, in pages
+     */
+    public void setReadAhead(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("read-ahead must not be negative");
+        }
+        this.readAhead = pages;
+    }
+
+    /**
+     * @return the read-ahead window of scans of this file, in pages
+     */
+    public int getReadAhead() {
+        return this.readAhead;
+    }
+
     public class HeapFileIterator implements DbFileIterator {
 
         TransactionId tid;
@@ -180,21 +294,66 @@ public class HeapFile implements DbFile {
         int numPages;
         Iterator<Tuple> tuples;
         HeapPageId pid;
+        // read-ahead window; pages below prefetchedTo have been requested
+        final int readAhead;
+        int prefetchedTo;
+        int nextPrefetchAt;
 
         public HeapFileIterator(TransactionId tid, int tableId, int numPages) {
+            this(tid, tableId, numPages, HeapFile.this.readAhead);
+        }
+
+        public HeapFileIterator(TransactionId tid, int tableId, int numPages, int readAhead) {
             this.tid = tid;
             this.tableId = tableId;
             this.numPages = numPages;
+            this.readAhead = readAhead;
+        }
+
+        /**
+         * Once the scan has moved on to a second page it is sequential, so
+         * prefetch the next readAhead pages. The next batch is requested when
+         * half of the current one has been read, so the prefetcher stays
+         * ahead of the scan.
+         */
+        private void readAhead(int pageNumber) {
+            if (readAhead <= 0 || pageNumber < 1 || pageNumber < nextPrefetchAt) {
+                return;
+            }
+            int from = Math.max(pageNumber + 1, prefetchedTo);
+            int to = Math.min(numPages, pageNumber + 1 + readAhead);
+            if (from < to) {
+                List<PageId> pids = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    pids.add(new HeapPageId(this.tableId, i));
+                }
+                Database.getBufferPool().prefetchPages(pids);
+                prefetchedTo = to;
+            }
+            nextPrefetchAt = pageNumber + Math.max(1, readAhead / 2);
         }
 
+        // the page being read stays pinned until the iterator moves past it
         private Iterator<Tuple> getTuples(int pageNumber) throws DbException, TransactionAbortedException {
-            pid = new HeapPageId(this.tableId, pageNumber);
-            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            unpinCurrent();
+            HeapPageId next = new HeapPageId(this.tableId, pageNumber);
+            readAhead(pageNumber);
+            HeapPage heapPage = (HeapPage) Database.getBufferPool().pinPage(tid, next, Permissions.READ_ONLY);
+            pid = next;
             return heapPage.iterator();
         }
 
+        private void unpinCurrent() {
+            if (pid != null) {
+                Database.getBufferPool().unpinPage(tid, pid);
+                pid = null;
+            }
+        }
+
         public void open() throws DbException, TransactionAbortedException {
             pageNumber = 0;
+            prefetchedTo = 0;
+            nextPrefetchAt = 0;
             tuples = getTuples(pageNumber);
         }
 
@@ -238,7 +397,7 @@ public class HeapFile implements DbFile {
 
         public void close() {
             tuples = null;
-            pid = null;
+            unpinCurrent();
         }
 
     }
@@ -248,4 +407,14 @@ public class HeapFile implements DbFile {
         // some code goes here
         return new HeapFileIterator(tid, this.getId(), this.numPages());
     }
+
+    /**
+     * Returns an iterator that prefetches the given number of pages ahead of
+     * the scan, instead of this file's default read-ahead window.
+     *
+     * @see #setReadAhead
+     */
+    public DbFileIterator iterator(TransactionId tid, int readAhead) {
+        return new HeapFileIterator(tid, this.getId(), this.numPages(), readAhead);
+    }
 }
\ No newline at end of file
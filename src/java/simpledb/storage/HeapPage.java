@@ -12,6 +12,14 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its on-disk bytes instead of parsing them into tuples.
+ * iterator() hands out tuples that are views over those bytes and decode a
+ * field only when it is asked for. Inserts and deletes patch only the bytes
+ * of their slot. The byte array is copy-on-write: once it has been shared
+ * with tuple views, the before-image or a caller of getPageData(), the next
+ * change copies it first, so taking a before-image or serializing the page
+ * costs O(1).
  *
  * @see HeapFile
  * @see BufferPool
@@ -21,9 +29,17 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
+    final int headerSize;
+    final int tupleSize;
+    // offset of every field within a tuple
+    final int[] fieldOffsets;
+
+    // the header bytes, then the tuple slots, then padding
+    private byte[] data;
+    // true if data is referenced outside this page (tuple views, the
+    // before-image, getPageData()), so it must be copied before changes
+    private volatile boolean shared;
 
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
@@ -32,6 +48,8 @@ public class HeapPage implements Page {
     TransactionId transactiondirty;
     // whether this page is dirty & not dirty
     boolean dirty;
+    // LSN of the last logged change, not stored on disk
+    private volatile long pageLSN;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -53,26 +71,57 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = td.getFieldOffsets();
+        // the caller keeps its array, so it is shared until the first change.
+        // Missing bytes at the end are taken to be zero.
+        if (data.length < BufferPool.getPageSize()) {
+            this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+        } else {
+            this.data = data;
+            this.shared = true;
+        }
+
+        // empty slots and padding must be all zeros, so that getPageData()
+        // produces the same bytes for equal pages
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                clearRange(slotOffset(i), slotOffset(i + 1));
+            }
         }
-        dis.close();
+        clearRange(slotOffset(numSlots), this.data.length);
 
         setBeforeImage();
     }
 
+    /**
+     * Creates a page over bytes that another HeapPage of the same table has
+     * already checked; used for before-images.
+     */
+    private HeapPage(HeapPageId id, TupleDesc td, byte[] data) {
+        this.pid = id;
+        this.td = td;
+        this.numSlots = getNumTuples();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = td.getFieldOffsets();
+        this.data = data;
+        this.shared = true;
+        this.oldData = data;
+    }
+
+    /** Zeroes data[from, to), copying data first if it has to change. */
+    private void clearRange(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] != 0) {
+                ensureWritable();
+                Arrays.fill(data, i, to, (byte) 0);
+                return;
+            }
+        }
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -94,25 +143,21 @@ public class HeapPage implements Page {
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
-        try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
+        byte[] oldDataRef = null;
+        synchronized(oldDataLock)
+        {
+            oldDataRef = oldData;
         }
-        return null;
+        // the before-image is never modified in place, so share its bytes
+        return new HeapPage(pid, td, oldDataRef);
     }
 
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        // copy-on-write: the next change to this page copies data first
+        shared = true;
+        oldData = data;
         }
     }
 
@@ -126,37 +171,21 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the given slot in the page data
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Makes data safe to modify: if tuple views may still read it, switch to
+     * a private copy first.
+     */
+    private void ensureWritable() {
+        if (shared) {
+            data = data.clone();
+            shared = false;
         }
-
-        return t;
     }
 
     /**
@@ -167,68 +196,17 @@ public class HeapPage implements Page {
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
      *
+     * <p>
+     * The returned array is the page's own copy-on-write buffer, not a copy:
+     * callers must not modify it.
+     *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        // the array is shared, not copied; callers must not modify it
+        shared = true;
+        return data;
     }
 
     /**
@@ -263,6 +241,8 @@ public class HeapPage implements Page {
             throw new DbException("tuple slot is already empty");
         }
         markSlotUsed(recordId.getTupleNumber(), false);
+        int offset = slotOffset(recordId.getTupleNumber());
+        Arrays.fill(data, offset, offset + tupleSize, (byte) 0);
     }
 
     /**
@@ -291,10 +271,20 @@ public class HeapPage implements Page {
         if (!t.getTupleDesc().equals(this.td)) {
             throw new DbException("Tuple description does not match file schema.");
         }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("could not serialize tuple: " + e.getMessage());
+        }
+        markSlotUsed(emptyslot, true);
+        System.arraycopy(baos.toByteArray(), 0, data, slotOffset(emptyslot), tupleSize);
         RecordId r = new RecordId(pid, emptyslot);
         t.setRecordId(r);
-        tuples[emptyslot] = t;
-        markSlotUsed(emptyslot, true);
 
     }
 
@@ -321,6 +311,20 @@ public class HeapPage implements Page {
         return this.transactiondirty;
     }
 
+    /**
+     * Returns the LSN of the last log record of a change to this page
+     */
+    public long getPageLSN() {
+        return this.pageLSN;
+    }
+
+    /**
+     * Records the LSN of a log record of a change to this page
+     */
+    public void setPageLSN(long lsn) {
+        this.pageLSN = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -343,7 +347,7 @@ public class HeapPage implements Page {
             int byteIndex = i / 8;
             int bitIndex = i % 8;
 
-            int byteValue = header[byteIndex];
+            int byteValue = data[byteIndex];
             int mask = 1 << bitIndex;
             return (byteValue & mask) != 0;
     }
@@ -354,11 +358,12 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        int bits = header[i / 8];
+        ensureWritable();
+        int bits = data[i / 8];
         int index = i % 8;
         int mask = 1 << index;
         bits = value ? bits | mask : bits & ~mask;
-        header[i / 8] = (byte) bits;
+        data[i / 8] = (byte) bits;
     }
 
     /**
@@ -367,11 +372,34 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tupleList = new ArrayList<Tuple>();
-        for(int i = 0; i < numSlots; i++)
-            if(isSlotUsed(i))
-                tupleList.add(tuples[i]);
-        return tupleList.iterator();
+        final byte[] bytes = data;
+        shared = true;
+        return new Iterator<Tuple>() {
+            // the next used slot, or numSlots
+            private int slot = nextUsedSlot(bytes, 0);
+
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            public Tuple next() {
+                if (slot >= numSlots) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = new Tuple(td, new RecordId(pid, slot), bytes, slotOffset(slot), fieldOffsets);
+                slot = nextUsedSlot(bytes, slot + 1);
+                return t;
+            }
+        };
+    }
+
+    private int nextUsedSlot(byte[] bytes, int from) {
+        for (int i = from; i < numSlots; i++) {
+            if ((bytes[i / 8] & (1 << (i % 8))) != 0) {
+                return i;
+            }
+        }
+        return numSlots;
     }
 
 }
@@ -6,8 +6,15 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -21,8 +28,8 @@ two-phase locking discipline are followed.  <p>
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+log records (on page flushed) and the log file discards BufferPool
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -55,8 +62,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -65,13 +72,37 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA records log the same change as an UPDATE record, as the byte
+ranges of the page that differ between the before and the after image,
+with the old and the new bytes of each; see PageDelta.  A change is
+logged as a DELTA record unless that takes more space than one page
+image.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+dirty page table: the pages whose logged changes may not have been
+written to their files yet, and the first record of those changes.  The
+format of the record is an integer count of the number of transactions,
+as well as a long integer transaction id and a long integer first record
+offset for each active transaction, then an integer count of the number
+of dirty pages, as well as a page id and a long integer first record
+offset for each dirty page.
+
+<li> The UPDATE and DELTA records a transaction writes for a page
+record its changes one after the other: each one goes from the image
+logged by the previous one, if any, to the new image.  Rolling back a
+transaction writes a compensation record per page, an UPDATE or DELTA
+record from the page as it was to the page as rolled back.
 
 </ul>
+
+<p> Records are appended to an in-memory log buffer, which is written to
+the file in large sequential writes when it fills up, when the log is
+forced, and before the log file is read.  Appending a record returns its
+log sequence number (LSN): the number of bytes appended to the log since
+it was created, up to the end of the record.  Unlike file offsets, LSNs
+do not change when the log is truncated.  A record is on disk once the
+log is forced up to its LSN, see {@link #forceUpTo}.
 */
 public class LogFile {
 
@@ -84,16 +115,91 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    long currentOffset = -1;//protected by this, includes the buffered records
+
+    // buffer size for reading the log, and pages cached by recovery
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final int RECOVERY_CACHE_PAGES = 1024;
+
+    /** Default size of the log buffer, in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    // records appended but not written to the file yet; they go to the file
+    // at offset bufferStart. protected by this
+    private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+    private int buffered = 0;
+    private long bufferStart = 0;
+    private final DataOutputStream out = new DataOutputStream(new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            if (buffered == buffer.length) {
+                flushBuffer();
+            }
+            buffer[buffered++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.length - buffered) {
+                flushBuffer();
+                if (len > buffer.length) {
+                    writeFully(ByteBuffer.wrap(b, off, len), bufferStart);
+                    bufferStart += len;
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buffer, buffered, len);
+            buffered += len;
+        }
+    });
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    // bytes of update records written by each live transaction
+    final Map<Long,Long> tidToLogBytes = new HashMap<>();
+
+    /** The image of a page logged last by a live transaction. */
+    private static final class LoggedImage {
+        final long tid;
+        final byte[] data;
+
+        LoggedImage(long tid, byte[] data) {
+            this.tid = tid;
+            this.data = data;
+        }
+    }
+
+    // the last image logged of each page a live transaction changed; the
+    // next record of the page by the same transaction is a delta from it,
+    // so the records of a page replay and roll back one after the other.
+    // protected by this
+    private final Map<PageId, LoggedImage> lastLogged = new HashMap<>();
+
+    // Dirty page table: the LSN of the first record of each page whose
+    // logged changes may not be in the page's file yet
+    private final Map<PageId, Long> dirtyPages = new ConcurrentHashMap<>();
+
+    /** Default number of bytes logged between automatic checkpoints. */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 16L << 20;
+    private volatile long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private long lastCheckpointLsn = 0; // protected by this
+    private int checkpoints = 0; // protected by this
+
+    // Group commit. The LSN of file offset o is lsnBase + o.
+    private long lsnBase = 0; // protected by this
+    // everything up to this LSN is on disk
+    private volatile long durableLsn = 0;
+    private final Object flushLock = new Object();
+    private boolean forcing = false; // protected by flushLock
+    private volatile long groupCommitWindowMicros = 0;
+    private final AtomicLong forces = new AtomicLong();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -133,13 +239,73 @@ public class LogFile {
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            offsetsReset(raf.getFilePointer());
+        }
+    }
+
+    /** Writes the log buffer to the file; the caller holds the monitor. */
+    private void flushBuffer() throws IOException {
+        if (buffered > 0) {
+            writeFully(ByteBuffer.wrap(buffer, 0, buffered), bufferStart);
+            bufferStart += buffered;
+            buffered = 0;
         }
     }
 
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        FileChannel channel = raf.getChannel();
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /** Sets the size of the log buffer.
+        @param bytes The size in bytes
+    */
+    public synchronized void setBufferSize(int bytes) throws IOException {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("log buffer size must be positive");
+        }
+        flushBuffer();
+        buffer = new byte[bytes];
+    }
+
+    public synchronized int getBufferSize() {
+        return buffer.length;
+    }
+
+    /**
+     * Called, with the monitor held, when currentOffset moves to newOffset
+     * without appending, i.e. when the log is rewritten. Keeps LSNs
+     * increasing, and makes everything written so far durable.
+     */
+    private void offsetsReset(long newOffset) throws IOException {
+        long end = currentLsn();
+        raf.getChannel().force(true);
+        forces.incrementAndGet();
+        bufferStart = newOffset;
+        buffered = 0;
+        currentOffset = newOffset;
+        lsnBase = end - newOffset;
+        markDurable(end);
+    }
+
+    /** @return the LSN of the end of the log; the caller holds the monitor */
+    private long currentLsn() {
+        return currentOffset < 0 ? lsnBase : lsnBase + currentOffset;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** Returns the number of bytes of update records the specified live
+        transaction has written to the log; this is what rolling it back
+        has to read.
+    */
+    public synchronized long getLogBytes(TransactionId tid) {
+        return tidToLogBytes.getOrDefault(tid.getId(), 0L);
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -160,47 +326,84 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset += INT_SIZE + 2 * LONG_SIZE;
                 force();
-                tidToFirstLogRecord.remove(tid.getId());
+                transactionEnded(tid.getId());
             }
         }
     }
 
+    /** Drops what is kept about a transaction while it runs. */
+    private void transactionEnded(long tid) {
+        tidToFirstLogRecord.remove(tid);
+        tidToLogBytes.remove(tid);
+        lastLogged.values().removeIf(image -> image.tid == tid);
+    }
+
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset += INT_SIZE + 2 * LONG_SIZE;
+            transactionEnded(tid.getId());
+            end = currentLsn();
+        }
+        // not under the monitor, so that other transactions can append
+        // their commit records and share the force
+        forceUpTo(end);
+        if (checkpointDue()) {
+            logCheckpoint();
+        }
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Write an UPDATE or a DELTA record to the log for the specified
+        tid and page (with provided         before and after images.)  The record is
+        not on disk until the log is forced up to the returned LSN.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return The LSN of the record
 
         @see Page#getBeforeImage
+        @see Page#setPageLSN
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        byte[] afterData = after.getPageData();
+        LoggedImage last = lastLogged.get(after.getId());
+        byte[] base = last != null && last.tid == tid.getId() ? last.data : before.getPageData();
+        long lsn = appendUpdate(tid.getId(), before, base, after, afterData);
+        if (tidToFirstLogRecord.containsKey(tid.getId())) {
+            lastLogged.put(after.getId(), new LoggedImage(tid.getId(), afterData));
+        }
+        return lsn;
+    }
+
+    /** Appends an UPDATE or a DELTA record for a change of a page from
+        base to afterData; an UPDATE record holds before as its before
+        image.  @return The LSN of the record
+    */
+    private long appendUpdate(long tid, Page before, byte[] base, Page after, byte[] afterData)
+        throws IOException {
         preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
+        long start = currentOffset;
+        dirtyPages.putIfAbsent(after.getId(), currentLsn());
         /* update record conists of
 
            record type
@@ -208,19 +411,44 @@ public class LogFile {
            before page data (see writePageData)
            after page data
            start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+           delta record consists of
+
+           record type
+           transaction id
+           delta (see PageDelta.write)
+           start offset
+        */
+        PageDelta delta = PageDelta.compute(after, base, afterData, BufferPool.getPageSize());
+        if (delta != null) {
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid);
+            delta.write(out);
+        } else {
+            out.writeInt(UPDATE_RECORD);
+            out.writeLong(tid);
+
+            writePageData(out,before);
+            writePageData(out,after);
+        }
+        out.writeLong(currentOffset);
+        currentOffset = bufferStart + buffered;
+        tidToLogBytes.merge(tid, currentOffset - start, Long::sum);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return currentLsn();
+    }
+
+    /** Tells the log that a page was written to its file, so recovery
+        need not redo its changes logged so far.  Called after every
+        write of a page whose changes were logged.
+        @param pid The page written
+    */
+    public void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput out, Page p) throws IOException{
         PageId pid = p.getId();
         int[] pageInfo = pid.serialize();
 
@@ -235,20 +463,20 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        out.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
+        out.writeInt(pageInfo.length);
         for (int j : pageInfo) {
-            raf.writeInt(j);
+            out.writeInt(j);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
@@ -257,7 +485,6 @@ public class LogFile {
 
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
@@ -267,17 +494,13 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = Database.getCatalog().getDatabaseFile(pid.getTableId())
+                .createPage(pageClassName, pid, pageData);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
@@ -288,6 +511,29 @@ public class LogFile {
 
     }
 
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        Object[] idArgs = new Object[in.readInt()];
+        for (int i = 0; i < idArgs.length; i++) {
+            idArgs[i] = in.readInt();
+        }
+        try {
+            Constructor<?> c = Class.forName(idClassName).getDeclaredConstructors()[0];
+            return (PageId) c.newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            throw new IOException("cannot create page id of " + idClassName, e);
+        }
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -300,136 +546,202 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset += INT_SIZE + 2 * LONG_SIZE;
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Write a fuzzy checkpoint: a CHECKPOINT record with the running
+        transactions and the dirty page table, without writing any page.
+        Recovery redoes the log from the oldest record in the dirty page
+        table on, or from the checkpoint if it is empty, so how long it
+        takes is bounded by how much is logged between checkpoints.
+        Truncates the log afterwards.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset = currentOffset;
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions and dirty pages
+            Map<PageId, Long> dirty = new HashMap<>();
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                dirty.put(e.getKey(), e.getValue() - lsnBase);
             }
+            writeCheckpoint(out, tidToFirstLogRecord, dirty);
+            out.writeLong(startCpOffset);
+            currentOffset = bufferStart + buffered;
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            lastCheckpointLsn = currentLsn();
+            checkpoints++;
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
+    /** @return true if more than the checkpoint interval was logged
+        since the last checkpoint */
+    private synchronized boolean checkpointDue() {
+        return checkpointInterval > 0 && currentLsn() - lastCheckpointLsn >= checkpointInterval;
+    }
+
+    /** Sets how many bytes are logged between automatic checkpoints,
+        which are taken when a transaction commits.
+        @param bytes The interval in bytes, or 0 for no automatic checkpoints
+    */
+    public void setCheckpointInterval(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("checkpoint interval must not be negative");
+        }
+        checkpointInterval = bytes;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /** @return the number of checkpoints taken */
+    public synchronized int getCheckpointCount() {
+        return checkpoints;
+    }
+
+    /* checkpoint data consists of
+
+       number of transactions
+       transaction id and first record offset of each
+       number of dirty pages
+       page id (see writePageId) and first record offset of each
+    */
+    private static void writeCheckpoint(DataOutput out, Map<Long, Long> xactions,
+                                        Map<PageId, Long> dirty) throws IOException {
+        out.writeInt(xactions.size());
+        for (Map.Entry<Long, Long> e : xactions.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+        }
+        out.writeInt(dirty.size());
+        for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+            writePageId(out, e.getKey());
+            out.writeLong(e.getValue());
+        }
+    }
+
+    private static void readCheckpoint(DataInput in, Map<Long, Long> xactions,
+                                       Map<PageId, Long> dirty) throws IOException {
+        int numXactions = in.readInt();
+        while (numXactions-- > 0) {
+            long xid = in.readLong();
+            xactions.put(xid, in.readLong());
+        }
+        int numDirty = in.readInt();
+        while (numDirty-- > 0) {
+            PageId pid = readPageId(in);
+            dirty.put(pid, in.readLong());
+        }
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        flushBuffer();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            // everything may be needed for recovery
+            return;
+        }
+        LogReader cp = reader(cpLoc);
+        int cpType = cp.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = cp.readLong();
 
-            int numOutstanding = raf.readInt();
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        Map<Long, Long> outstanding = new HashMap<>();
+        Map<PageId, Long> dirty = new HashMap<>();
+        readCheckpoint(cp, outstanding, dirty);
+        for (long firstLogRecord : outstanding.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (long recLogRecord : dirty.values()) {
+            minLogRecord = Math.min(minLogRecord, recLogRecord);
         }
 
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+        try (DataOutputStream logNew = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(newFile), READ_BUFFER_SIZE))) {
+            logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+
+            LogReader in = reader(minLogRecord);
+
+            //have to rewrite log records since offsets are different after truncation
+            while (true) {
+                try {
+                    long newStart = (in.offset() - minLogRecord) + LONG_SIZE;
+                    int type = in.readInt();
+                    long record_tid = in.readLong();
+
+                    Debug.log("NEW START = " + newStart);
+
+                    logNew.writeInt(type);
+                    logNew.writeLong(record_tid);
+
+                    switch (type) {
+                    case UPDATE_RECORD:
+                        Page before = readPageData(in);
+                        Page after = readPageData(in);
+
+                        writePageData(logNew, before);
+                        writePageData(logNew, after);
+                        break;
+                    case DELTA_RECORD:
+                        PageDelta.read(in).write(logNew);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        Map<Long, Long> xactions = new LinkedHashMap<>();
+                        Map<PageId, Long> pages = new LinkedHashMap<>();
+                        readCheckpoint(in, xactions, pages);
+                        for (Map.Entry<Long, Long> e : xactions.entrySet()) {
+                            e.setValue((e.getValue() - minLogRecord) + LONG_SIZE);
+                        }
+                        for (Map.Entry<PageId, Long> e : pages.entrySet()) {
+                            e.setValue((e.getValue() - minLogRecord) + LONG_SIZE);
+                        }
+                        writeCheckpoint(logNew, xactions, pages);
+                        break;
+                    case BEGIN_RECORD:
+                        tidToFirstLogRecord.put(record_tid,newStart);
+                        break;
+                    }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+                    //all xactions finish with a pointer
+                    logNew.writeLong(newStart);
+                    in.readLong();
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                } catch (EOFException e) {
                     break;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
         }
 
@@ -442,7 +754,7 @@ public class LogFile {
         raf.seek(raf.length());
         newFile.delete();
 
-        currentOffset = raf.getFilePointer();
+        offsetsReset(raf.getFilePointer());
         //print();
     }
 
@@ -452,6 +764,13 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        <p> The rolled back pages are written to their files and
+        dropped from the BufferPool.  The rollback is logged as a
+        compensation record per page, an UPDATE or DELTA record of the
+        transaction from the page as it was to the page as rolled back,
+        so that recovery, which repeats the logged history, repeats the
+        rollback as well.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
@@ -459,7 +778,14 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    return;
+                }
+                flushBuffer();
+                Map<PageId, Page> pages = new HashMap<>();
+                undo(Collections.singletonMap(tid.getId(), first), pages);
+                writePages(pages);
             }
         }
     }
@@ -481,18 +807,304 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        <p> Recovery reads the last checkpoint and goes through the log
+        once from the oldest record it may have to redo.  From the
+        checkpoint on, it tracks which transactions finished (analysis).
+        It redoes every change logged since the checkpoint and every
+        older one of a page in the checkpoint's dirty page table, from
+        the first record of that page in the table on (redo); changes
+        are byte ranges or page images, so redoing a change that is in
+        the page's file already does no harm.  Then it rolls back the
+        transactions that did not finish (undo), like rollback() does,
+        and logs an ABORT record for each.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    // nothing was logged
+                    raf.setLength(0);
+                    raf.seek(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    offsetsReset(LONG_SIZE);
+                    return;
+                }
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+
+                // the transactions running and the pages whose changes
+                // may be missing from their files
+                Map<Long, Long> losers = new HashMap<>();
+                Map<PageId, Long> dirty = new HashMap<>();
+                long analysisStart = LONG_SIZE;
+                long redoStart = LONG_SIZE;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    LogReader cp = reader(cpLoc);
+                    if (cp.readInt() != CHECKPOINT_RECORD) {
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    }
+                    cp.readLong();
+                    readCheckpoint(cp, losers, dirty);
+                    analysisStart = cpLoc;
+                    redoStart = cpLoc;
+                    for (long recLogRecord : dirty.values()) {
+                        redoStart = Math.min(redoStart, recLogRecord);
+                    }
+                }
+
+                Map<PageId, Page> pages = new HashMap<>();
+                LogReader in = reader(redoStart);
+                long end = redoStart;
+                scan:
+                while (true) {
+                    long start = in.offset();
+                    boolean analyzed = start >= analysisStart;
+                    try {
+                        int type = in.readInt();
+                        long tid = in.readLong();
+                        switch (type) {
+                        case BEGIN_RECORD:
+                            if (analyzed) {
+                                losers.put(tid, start);
+                            }
+                            break;
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            if (analyzed) {
+                                losers.remove(tid);
+                            }
+                            break;
+                        case CHECKPOINT_RECORD:
+                            readCheckpoint(in, new HashMap<>(), new HashMap<>());
+                            break;
+                        case UPDATE_RECORD:
+                        case DELTA_RECORD:
+                            UpdateRecord r = readUpdate(in, type, tid);
+                            Long recLogRecord = dirty.get(r.pid);
+                            if (analyzed) {
+                                losers.putIfAbsent(tid, start);
+                            }
+                            if (analyzed || (recLogRecord != null && start >= recLogRecord)) {
+                                pages.put(r.pid, r.redo(page(pages, r.pid)));
+                                if (pages.size() > RECOVERY_CACHE_PAGES) {
+                                    writePages(pages);
+                                }
+                            }
+                            break;
+                        default:
+                            // a record torn by the crash
+                            break scan;
+                        }
+                        in.readLong();
+                        end = in.offset();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                }
+
+                // new records go after the recovered ones
+                raf.setLength(end);
+                offsetsReset(end);
+
+                if (!losers.isEmpty()) {
+                    undo(losers, pages);
+                }
+                writePages(pages);
+                for (long tid : losers.keySet()) {
+                    preAppend();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    currentOffset += INT_SIZE + 2 * LONG_SIZE;
+                }
+                force();
+                lastCheckpointLsn = currentLsn();
             }
          }
     }
 
+    /** Rolls back the changes logged by the given transactions, from the
+        end of the log back to their first records, in the given page
+        images, and logs compensation records for the pages changed.
+        Pages not in pages are read from their files.  The log buffer
+        must be empty.
+        @param xactions The first record offset of each transaction
+    */
+    private void undo(Map<Long, Long> xactions, Map<PageId, Page> pages) throws IOException {
+        long start = Long.MAX_VALUE;
+        for (long firstLogRecord : xactions.values()) {
+            start = Math.min(start, firstLogRecord);
+        }
+        List<Long> records = new ArrayList<>();
+        LogReader in = reader(start);
+        scan:
+        while (true) {
+            long offset = in.offset();
+            try {
+                int type = in.readInt();
+                long tid = in.readLong();
+                switch (type) {
+                case CHECKPOINT_RECORD:
+                    readCheckpoint(in, new HashMap<>(), new HashMap<>());
+                    break;
+                case UPDATE_RECORD:
+                case DELTA_RECORD:
+                    readUpdate(in, type, tid);
+                    if (xactions.containsKey(tid)) {
+                        records.add(offset);
+                    }
+                    break;
+                case BEGIN_RECORD:
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    break;
+                default:
+                    break scan;
+                }
+                in.readLong();
+            } catch (EOFException e) {
+                break;
+            }
+        }
+
+        // the page images before the undo, and whose records they are
+        Map<PageId, Page> undone = new LinkedHashMap<>();
+        Map<PageId, Long> owners = new HashMap<>();
+        for (int i = records.size() - 1; i >= 0; i--) {
+            LogReader record = reader(records.get(i));
+            UpdateRecord r = readUpdate(record, record.readInt(), record.readLong());
+            Page current = page(pages, r.pid);
+            if (!undone.containsKey(r.pid)) {
+                undone.put(r.pid, current);
+                owners.put(r.pid, r.tid);
+            }
+            pages.put(r.pid, r.undo(current));
+        }
+        for (Map.Entry<PageId, Page> e : undone.entrySet()) {
+            Page before = e.getValue();
+            Page after = pages.get(e.getKey());
+            appendUpdate(owners.get(e.getKey()), before, before.getPageData(), after, after.getPageData());
+            Database.getCatalog().getDatabaseFile(e.getKey().getTableId()).pageRolledBack(e.getKey());
+        }
+    }
+
+    /** @return the image of the page in pages, read from its file if
+        it is not there yet */
+    private static Page page(Map<PageId, Page> pages, PageId pid) {
+        Page p = pages.get(pid);
+        if (p == null) {
+            p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            pages.put(pid, p);
+        }
+        return p;
+    }
+
+    /** Writes the given page images to their files, drops the pages from
+        the BufferPool, and empties pages. */
+    private void writePages(Map<PageId, Page> pages) throws IOException {
+        for (Page p : pages.values()) {
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            pageWritten(p.getId());
+            Database.getBufferPool().discardPage(p.getId());
+        }
+        pages.clear();
+    }
+
+    /** An UPDATE or a DELTA record. */
+    private static final class UpdateRecord {
+        final long tid;
+        final PageId pid;
+        // the images of an UPDATE record, or the delta of a DELTA record
+        final Page before;
+        final Page after;
+        final PageDelta delta;
+
+        UpdateRecord(long tid, Page before, Page after, PageDelta delta) {
+            this.tid = tid;
+            this.pid = delta != null ? delta.getPageId() : after.getId();
+            this.before = before;
+            this.after = after;
+            this.delta = delta;
+        }
+
+        Page redo(Page current) throws IOException {
+            return delta != null ? delta.redo(current) : after;
+        }
+
+        Page undo(Page current) throws IOException {
+            return delta != null ? delta.undo(current) : before;
+        }
+    }
+
+    private UpdateRecord readUpdate(DataInput in, int type, long tid) throws IOException {
+        if (type == DELTA_RECORD) {
+            return new UpdateRecord(tid, null, null, PageDelta.read(in));
+        }
+        Page before = readPageData(in);
+        Page after = readPageData(in);
+        return new UpdateRecord(tid, before, after, null);
+    }
+
+    /** Reads the log from the given offset on; the log buffer must have
+        been written to the file. */
+    private LogReader reader(long offset) throws IOException {
+        return new LogReader(raf.getChannel(), offset);
+    }
+
+    /** Reads log records sequentially through a buffer, and tracks the
+        offset of the next byte to read. */
+    private static final class LogReader extends DataInputStream {
+        LogReader(FileChannel channel, long offset) throws IOException {
+            super(new OffsetInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(offset)), READ_BUFFER_SIZE), offset));
+        }
+
+        long offset() {
+            return ((OffsetInputStream) in).offset;
+        }
+    }
+
+    private static final class OffsetInputStream extends FilterInputStream {
+        long offset;
+
+        OffsetInputStream(InputStream in, long offset) {
+            super(in);
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                offset++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                offset += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            offset += skipped;
+            return skipped;
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
+        synchronized (this) {
+            flushBuffer();
+        }
         long curOffset = raf.getFilePointer();
 
         raf.seek(0);
@@ -532,6 +1144,16 @@ public class LogFile {
                         System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                         System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
+                    int numDirty = raf.readInt();
+                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+
+                    while (numDirty-- > 0) {
+                        long pageStart = raf.getFilePointer();
+                        PageId pid = readPageId(raf);
+                        long recRecord = raf.readLong();
+                        System.out.println(pageStart + ": PAGE: " + pid.getTableId() + ":" + pid.getPageNumber());
+                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + recRecord);
+                    }
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                     break;
@@ -554,6 +1176,19 @@ public class LogFile {
 
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                    break;
+                case DELTA_RECORD:
+                    System.out.println(" (DELTA)");
+
+                    long deltaStart = raf.getFilePointer();
+                    PageDelta delta = PageDelta.read(raf);
+
+                    System.out.println(deltaStart + ": table id " + delta.getPageId().getTableId());
+                    System.out.println(deltaStart + ": page number " + delta.getPageId().getPageNumber());
+                    System.out.println(deltaStart + " TO " + raf.getFilePointer() + ": " + delta.getChangedBytes() + " changed bytes");
+
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+
                     break;
                 }
 
@@ -568,7 +1203,130 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
+        long end = currentLsn();
+        flushBuffer();
         raf.getChannel().force(true);
+        forces.incrementAndGet();
+        markDurable(end);
+    }
+
+    /** Force all log records to disk like force(), but share the write
+        to disk with the other threads forcing the log at the same time:
+        one of them forces the log once for everything appended before it
+        starts, while the others wait.  Must not be called with the
+        monitor of this LogFile held.
+    */
+    public void groupForce() throws IOException {
+        long end;
+        synchronized (this) {
+            end = currentLsn();
+        }
+        forceUpTo(end);
+    }
+
+    /** Sets how long a thread about to force the log for a group waits
+        for more records first.  0, the default, forces as soon as it is
+        asked to; commits arriving while the log is forced still form
+        the next group.
+        @param micros The time to wait, in microseconds
+    */
+    public void setGroupCommitWindow(long micros) {
+        if (micros < 0) {
+            throw new IllegalArgumentException("group commit window must not be negative");
+        }
+        groupCommitWindowMicros = micros;
+    }
+
+    public long getGroupCommitWindow() {
+        return groupCommitWindowMicros;
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        return forces.get();
+    }
+
+    private void markDurable(long lsn) {
+        synchronized (flushLock) {
+            if (lsn > durableLsn) {
+                durableLsn = lsn;
+            }
+            flushLock.notifyAll();
+        }
+    }
+
+    /** @return the LSN up to which the log is on disk */
+    public long getDurableLSN() {
+        return durableLsn;
+    }
+
+    /** Makes sure the log is on disk up to the given LSN, and does
+        nothing if it already is; so forcing the log for a page whose
+        records were forced by another transaction costs nothing.
+
+        <p> The first thread to wait while nobody forces the log leads
+        the next group: it forces the log, covering every record
+        appended until then, while the threads arriving meanwhile wait
+        for it; the rest of them pick a new leader when it is done.
+        Forcing in the waiting threads rather than handing off to a
+        flusher thread saves two context switches per force.  A thread
+        holding the monitor of this LogFile forces the log itself.
+
+        @param lsn The LSN returned when the last record that must be
+        on disk was appended
+    */
+    public void forceUpTo(long lsn) throws IOException {
+        if (durableLsn >= lsn) {
+            return;
+        }
+        if (Thread.holdsLock(this)) {
+            force();
+            return;
+        }
+        while (durableLsn < lsn) {
+            synchronized (flushLock) {
+                while (forcing && durableLsn < lsn) {
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("interrupted while forcing the log");
+                    }
+                }
+                if (durableLsn >= lsn) {
+                    return;
+                }
+                forcing = true;
+            }
+            try {
+                long window = groupCommitWindowMicros;
+                if (window > 0) {
+                    LockSupport.parkNanos(window * 1000);
+                }
+                long end;
+                FileChannel channel;
+                synchronized (this) {
+                    end = currentLsn();
+                    flushBuffer();
+                    channel = raf.getChannel();
+                }
+                try {
+                    // without the monitor: appends go on while we force
+                    channel.force(true);
+                    forces.incrementAndGet();
+                    markDurable(end);
+                } catch (ClosedChannelException e) {
+                    // fine if the log was rewritten, which forced it
+                    if (durableLsn < end) {
+                        throw e;
+                    }
+                }
+            } finally {
+                synchronized (flushLock) {
+                    forcing = false;
+                    flushLock.notifyAll();
+                }
+            }
+        }
     }
 
 }
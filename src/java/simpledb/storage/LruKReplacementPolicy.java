@@ -0,0 +1,110 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The policy remembers the
+ * times of the last K accesses to every tracked page and evicts the page whose
+ * K-th most recent access lies furthest in the past. Pages that have been
+ * accessed fewer than K times are considered infinitely old and go first, in
+ * LRU order among themselves, so a large sequential scan cannot push out a
+ * hot set of pages such as B+ tree internal nodes.
+ * <p>
+ * Candidates are kept ordered in a tree, so accesses and evictions cost
+ * O(log n) in the number of resident pages.
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+    /** K used by the no-argument constructor. */
+    public static final int DEFAULT_K = 2;
+
+    private static class History {
+        final PageId pid;
+        // access times, most recent first; 0 means no access recorded
+        final long[] times;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        long kthAccess() {
+            return times[times.length - 1];
+        }
+
+        long lastAccess() {
+            return times[0];
+        }
+    }
+
+    private final int k;
+    private final Map<PageId, History> histories;
+    private final TreeSet<History> candidates;
+    private long clock;
+
+    public LruKReplacementPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of past accesses remembered for every page; must be
+     *          at least 1 (LRU-1 is plain LRU)
+     */
+    public LruKReplacementPolicy(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        this.histories = new HashMap<>();
+        this.candidates = new TreeSet<>((a, b) -> {
+            int cmp = Long.compare(a.kthAccess(), b.kthAccess());
+            if (cmp != 0) {
+                return cmp;
+            }
+            // last access times are unique, so this is a total order
+            return Long.compare(a.lastAccess(), b.lastAccess());
+        });
+        this.clock = 0;
+    }
+
+    public void recordAccess(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) {
+            h = new History(pid, k);
+            histories.put(pid, h);
+        } else {
+            candidates.remove(h);
+        }
+        System.arraycopy(h.times, 0, h.times, 1, k - 1);
+        h.times[0] = ++clock;
+        candidates.add(h);
+    }
+
+    public void remove(PageId pid) {
+        History h = histories.remove(pid);
+        if (h != null) {
+            candidates.remove(h);
+        }
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        Iterator<History> it = candidates.iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (evictable.test(h.pid)) {
+                it.remove();
+                histories.remove(h.pid);
+                return h.pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return histories.size();
+    }
+}
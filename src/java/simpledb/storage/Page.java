@@ -58,4 +58,18 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Returns the LSN of the last log record of a change to this page, which
+     * must be on disk before the page is written out.
+     *
+     * @return the pageLSN, or 0 if no change to the page was logged
+     * @see LogFile#forceUpTo
+     */
+    long getPageLSN();
+
+    /**
+     * Records the LSN of a log record of a change to this page.
+     */
+    void setPageLSN(long lsn);
 }
@@ -0,0 +1,190 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import simpledb.common.Database;
+
+/**
+ * PageDelta is the change a transaction made to a page: the byte ranges of
+ * the page's serialized image that differ between its before and after
+ * images, with the old and the new bytes of each. Inserting or deleting a
+ * tuple, flipping a header bit or changing a sibling or parent pointer
+ * touches a few dozen bytes of a page, so logging the delta instead of both
+ * page images cuts the log volume by orders of magnitude.
+ * <p>
+ * Applying the new bytes to the before image redoes the change, applying
+ * the old bytes to the after image undoes it.
+ *
+ * @Immutable
+ */
+class PageDelta {
+
+    // changed ranges closer than this are logged as one, since every range
+    // costs two ints
+    private static final int MIN_GAP = 8;
+
+    private final String pageClassName;
+    private final PageId pid;
+    private final int pageSize;
+    // the ranges, as offset, length, old bytes, new bytes
+    private final int[] offsets;
+    private final byte[][] oldBytes;
+    private final byte[][] newBytes;
+
+    private PageDelta(String pageClassName, PageId pid, int pageSize,
+                      int[] offsets, byte[][] oldBytes, byte[][] newBytes) {
+        this.pageClassName = pageClassName;
+        this.pid = pid;
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.oldBytes = oldBytes;
+        this.newBytes = newBytes;
+    }
+
+    /**
+     * Computes the delta between two images of a page.
+     *
+     * @param after the page as of after the change
+     * @param b the data of the page as of before the change
+     * @param a the data of after
+     * @param maxSize the largest serialized size worth logging as a delta
+     * @return the delta, or null if its serialized size would exceed maxSize
+     */
+    static PageDelta compute(Page after, byte[] b, byte[] a, int maxSize) {
+        if (a.length != b.length) {
+            return null;
+        }
+        int n = 0;
+        int[] starts = new int[8];
+        int[] ends = new int[8];
+        int size = headerSize(after);
+        for (int i = mismatch(b, a, 0); i < a.length; i = mismatch(b, a, i)) {
+            int end = i + 1;
+            // extend the range over differences separated by short gaps
+            for (int next = end; next < a.length && next - end < MIN_GAP; next++) {
+                if (a[next] != b[next]) {
+                    end = next + 1;
+                }
+            }
+            if (n == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * n);
+                ends = Arrays.copyOf(ends, 2 * n);
+            }
+            starts[n] = i;
+            ends[n++] = end;
+            size += 2 * 4 + 2 * (end - i);
+            if (size > maxSize) {
+                return null;
+            }
+            i = end;
+        }
+        int[] offsets = Arrays.copyOf(starts, n);
+        byte[][] oldBytes = new byte[n][];
+        byte[][] newBytes = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            oldBytes[r] = Arrays.copyOfRange(b, starts[r], ends[r]);
+            newBytes[r] = Arrays.copyOfRange(a, starts[r], ends[r]);
+        }
+        return new PageDelta(after.getClass().getName(), after.getId(), a.length,
+                offsets, oldBytes, newBytes);
+    }
+
+    /** @return the first index from i on where the arrays differ, or their length */
+    private static int mismatch(byte[] b, byte[] a, int i) {
+        while (i < a.length && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    // class names, page id, page size, number of ranges; UTF strings of
+    // ASCII characters take two bytes more than their length
+    private static int headerSize(Page p) {
+        return 2 + p.getClass().getName().length() + 2 + p.getId().getClass().getName().length()
+                + 4 + 4 * p.getId().serialize().length + 4 + 4;
+    }
+
+    /**
+     * @return the id of the changed page
+     */
+    PageId getPageId() {
+        return this.pid;
+    }
+
+    /**
+     * @return the number of bytes that changed, including short unchanged
+     *         gaps between changes
+     */
+    int getChangedBytes() {
+        int n = 0;
+        for (byte[] r : this.newBytes) {
+            n += r.length;
+        }
+        return n;
+    }
+
+    /**
+     * Applies the new bytes to a page image.
+     *
+     * @param before the page as of before the change
+     * @return a new page as of after the change
+     */
+    Page redo(Page before) throws IOException {
+        return apply(before, this.newBytes);
+    }
+
+    /**
+     * Applies the old bytes to a page image.
+     *
+     * @param after the page as of after the change
+     * @return a new page as of before the change
+     */
+    Page undo(Page after) throws IOException {
+        return apply(after, this.oldBytes);
+    }
+
+    private Page apply(Page p, byte[][] ranges) throws IOException {
+        byte[] data = p.getPageData().clone();
+        for (int r = 0; r < this.offsets.length; r++) {
+            System.arraycopy(ranges[r], 0, data, this.offsets[r], ranges[r].length);
+        }
+        return Database.getCatalog().getDatabaseFile(this.pid.getTableId())
+                .createPage(this.pageClassName, this.pid, data);
+    }
+
+    /** Writes this delta in the format read by read(). */
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(this.pageClassName);
+        LogFile.writePageId(out, this.pid);
+        out.writeInt(this.pageSize);
+        out.writeInt(this.offsets.length);
+        for (int r = 0; r < this.offsets.length; r++) {
+            out.writeInt(this.offsets[r]);
+            out.writeInt(this.newBytes[r].length);
+            out.write(this.oldBytes[r]);
+            out.write(this.newBytes[r]);
+        }
+    }
+
+    /** Reads a delta written by write(). */
+    static PageDelta read(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = LogFile.readPageId(in);
+        int pageSize = in.readInt();
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] oldBytes = new byte[n][];
+        byte[][] newBytes = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            oldBytes[r] = new byte[in.readInt()];
+            newBytes[r] = new byte[oldBytes[r].length];
+            in.readFully(oldBytes[r]);
+            in.readFully(newBytes[r]);
+        }
+        return new PageDelta(pageClassName, pid, pageSize, offsets, oldBytes, newBytes);
+    }
+}
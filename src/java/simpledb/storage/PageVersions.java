@@ -0,0 +1,213 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageVersions keeps the committed images of pages that snapshot
+ * transactions may still need to read.
+ * <p>
+ * Commits are numbered by a counter. A snapshot transaction reads the
+ * database as of the commit counter when it began: for every page, the
+ * image committed last before that. The BufferPool gives it the before-image
+ * of the cached page, which is the page as last committed, unless a later
+ * commit replaced it; so before a commit overwrites a page, its committed
+ * image is kept here, tagged with the number of that commit, for as long as
+ * an older snapshot is running.
+ * <p>
+ * A snapshot never begins while a commit is writing pages, so it sees every
+ * commit either completely or not at all.
+ * <p>
+ * A page written to disk before its transaction completes may be evicted and
+ * read back, and then neither its image nor its before-image is committed.
+ * Its committed image is kept here until the transaction completes.
+ *
+ * @Threadsafe
+ */
+class PageVersions {
+
+    /** A committed image of a page, and the commit that replaced it. */
+    private static final class Version {
+        final Page image;
+        final long replacedBy;
+        // the next older version, or null
+        volatile Version older;
+
+        Version(Page image, long replacedBy, Version older) {
+            this.image = image;
+            this.replacedBy = replacedBy;
+            this.older = older;
+        }
+    }
+
+    // the number of the last commit
+    private final AtomicLong commits = new AtomicLong();
+    // held shared by commits and exclusively by snapshots beginning
+    private final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+    // the commit each running snapshot reads as of
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<TransactionId, Long>();
+    // the newest saved version of each page
+    private final Map<PageId, Version> versions = new ConcurrentHashMap<PageId, Version>();
+    // the committed images of pages written before their transaction completed
+    private final Map<PageId, Page> uncommitted = new ConcurrentHashMap<PageId, Page>();
+    private final AtomicInteger versionCount = new AtomicInteger();
+
+    /** Begins a snapshot of the database as of now for the given transaction. */
+    void begin(TransactionId tid) {
+        this.commitLock.writeLock().lock();
+        try {
+            this.snapshots.put(tid, this.commits.get());
+        } finally {
+            this.commitLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the given transaction reads a snapshot
+     */
+    boolean isSnapshot(TransactionId tid) {
+        return !this.snapshots.isEmpty() && this.snapshots.containsKey(tid);
+    }
+
+    /**
+     * Ends the snapshot of the given transaction, and drops the versions no
+     * running snapshot needs anymore.
+     *
+     * @return false if the transaction did not read a snapshot
+     */
+    boolean end(TransactionId tid) {
+        if (this.snapshots.remove(tid) == null) {
+            return false;
+        }
+        prune();
+        return true;
+    }
+
+    /** Drops the versions no running snapshot reads. */
+    private synchronized void prune() {
+        long oldest = Long.MAX_VALUE;
+        for (long s : this.snapshots.values()) {
+            oldest = Math.min(oldest, s);
+        }
+        // a version replaced by commit c is read by snapshots older than c
+        for (Map.Entry<PageId, Version> e : this.versions.entrySet()) {
+            Version v = e.getValue();
+            if (v.replacedBy <= oldest) {
+                if (this.versions.remove(e.getKey(), v)) {
+                    this.versionCount.addAndGet(-count(v));
+                }
+                continue;
+            }
+            for (Version older = v.older; older != null; v = older, older = v.older) {
+                if (older.replacedBy <= oldest) {
+                    v.older = null;
+                    this.versionCount.addAndGet(-count(older));
+                    break;
+                }
+            }
+        }
+    }
+
+    private static int count(Version v) {
+        int n = 0;
+        for (; v != null; v = v.older) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the image of a page the given snapshot reads, if a commit after
+     * the snapshot began replaced it. The caller must hold the latch of the
+     * page's frame shared, so the page is not committed meanwhile.
+     *
+     * @return the saved image, or null if the snapshot reads the page's
+     *         current before-image
+     */
+    Page read(TransactionId tid, PageId pid) {
+        Long snapshot = this.snapshots.get(tid);
+        Page image = null;
+        for (Version v = this.versions.get(pid); v != null && v.replacedBy > snapshot; v = v.older) {
+            image = v.image;
+        }
+        return image != null ? image : this.uncommitted.get(pid);
+    }
+
+    /**
+     * Called before a page is written to disk before its transaction
+     * completes, with the latch of its frame held exclusively.
+     *
+     * @param committed the before-image of the page, which is its committed
+     *                  image unless the page was written before
+     */
+    void writeUncommitted(PageId pid, Page committed) {
+        this.uncommitted.putIfAbsent(pid, committed);
+    }
+
+    /**
+     * @return the committed image of a page written before its transaction
+     *         completed, or else the given before-image of the page
+     */
+    Page committed(PageId pid, Page beforeImage) {
+        Page committed = this.uncommitted.get(pid);
+        return committed != null ? committed : beforeImage;
+    }
+
+    /**
+     * Called when the transaction that wrote a page before completing has
+     * completed, and the image of the page on disk is committed again. On
+     * commit, the committed image must have been passed to save() before.
+     */
+    void completed(PageId pid) {
+        this.uncommitted.remove(pid);
+    }
+
+    /**
+     * Called before a transaction commits its pages. Until commitEnd(), no
+     * snapshot begins.
+     */
+    void commitStart() {
+        this.commitLock.readLock().lock();
+    }
+
+    /**
+     * Called between commitStart() and commitEnd() before a page is
+     * overwritten by the commit, with the latch of its frame held
+     * exclusively.
+     *
+     * @param committed the image of the page as of the previous commit
+     */
+    void save(PageId pid, Page committed) {
+        if (this.snapshots.isEmpty()) {
+            return;
+        }
+        long commit = this.commits.get() + 1;
+        this.versions.compute(pid, (k, newest) -> new Version(committed, commit, newest));
+        this.versionCount.incrementAndGet();
+    }
+
+    /** Called when a transaction has committed its pages. */
+    void commitEnd() {
+        this.commits.incrementAndGet();
+        this.commitLock.readLock().unlock();
+    }
+
+    /**
+     * @return the number of saved page versions
+     */
+    int getVersionCount() {
+        return this.versionCount.get();
+    }
+
+    /**
+     * @return the number of running snapshots
+     */
+    int getSnapshotCount() {
+        return this.snapshots.size();
+    }
+}
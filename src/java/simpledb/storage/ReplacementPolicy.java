@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool should give up
+ * when it needs a free frame. The BufferPool reports every access to a page
+ * and every page it drops on its own (e.g. discardPage), and asks the policy
+ * for a victim when the pool is full.
+ * <p>
+ * Implementations are not required to be thread-safe; the BufferPool
+ * serializes all calls into its policy.
+ *
+ * @see BufferPool
+ * @see ClockReplacementPolicy
+ * @see LruKReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Record that the specified page was accessed. This is called both when a
+     * page is found in the pool and when it has just been loaded into it.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    void recordAccess(PageId pid);
+
+    /**
+     * Stop tracking the specified page, because the BufferPool removed it
+     * without going through {@link #evict}. Unknown pages are ignored.
+     *
+     * @param pid the id of the page that left the pool
+     */
+    void remove(PageId pid);
+
+    /**
+     * Choose a page to evict among the pages currently tracked by this policy,
+     * and stop tracking it.
+     *
+     * @param evictable tells whether a page may be evicted right now (for
+     *                  example, dirty pages may not be evicted under NO STEAL)
+     * @return the id of the evicted page, or null if no tracked page may be evicted
+     */
+    PageId evict(Predicate<PageId> evictable);
+
+    /**
+     * @return the number of pages currently tracked by this policy
+     */
+    int size();
+}
@@ -1,22 +1,36 @@
 package simpledb.storage;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * Tuples read from a page are views over the page's bytes: a field is only
+ * decoded the first time it is asked for. The page never modifies bytes that
+ * a view may still read, so a view stays valid after it leaves the page.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private TupleDesc td;
     private RecordId recordId;
-    private Map<Integer,Field> tuple_data = new HashMap<Integer,Field>();
+    private Field[] fields;
+
+    // for views: the bytes the fields not decoded yet are read from, where
+    // the tuple starts in them and where each field starts within the tuple;
+    // null once all fields are decoded
+    private byte[] data;
+    private int base;
+    private int[] offsets;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -32,6 +46,27 @@ public class Tuple implements Serializable {
         }
         this.td = td;
         this.recordId = null;
+        this.fields = new Field[td.numFields()];
+    }
+
+    /**
+     * Creates a view of a tuple serialized in data.
+     *
+     * @param td the schema of the tuple
+     * @param rid where the tuple is stored
+     * @param data the bytes holding the tuple; they must not change while
+     *             the view exists
+     * @param base the offset of the tuple in data
+     * @param offsets the offset of every field within the tuple, see
+     *                {@link TupleDesc#getFieldOffsets()}; it is not copied
+     */
+    Tuple(TupleDesc td, RecordId rid, byte[] data, int base, int[] offsets) {
+        this.td = td;
+        this.recordId = rid;
+        this.fields = new Field[offsets.length];
+        this.data = data;
+        this.base = base;
+        this.offsets = offsets;
     }
 
     /**
@@ -74,7 +109,11 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        this.tuple_data.put(i, f);
+        if (i >= this.fields.length) {
+            // the TupleDesc may have been reset to a wider one
+            this.fields = Arrays.copyOf(this.fields, Math.max(i + 1, this.td.numFields()));
+        }
+        this.fields[i] = f;
     }
 
     /**
@@ -85,10 +124,40 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        Field f = this.tuple_data.get(i);
+        if (i >= this.fields.length) {
+            return null;
+        }
+        Field f = this.fields[i];
+        byte[] bytes = this.data;
+        int[] offs = this.offsets;
+        if (f == null && bytes != null && offs != null && i < offs.length) {
+            // concurrent readers may both decode the field; they get equal values
+            f = this.td.getFieldType(i).parse(bytes, this.base + offs[i]);
+            this.fields[i] = f;
+        }
         return f;
     }
 
+    /**
+     * Decodes all fields that have not been decoded yet and detaches this
+     * tuple from the bytes it was read from.
+     */
+    private void materialize() {
+        if (this.data != null) {
+            for (int i = 0; i < this.offsets.length; i++) {
+                getField(i);
+            }
+            this.data = null;
+            this.offsets = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // don't ship the whole page along with the tuple
+        materialize();
+        out.defaultWriteObject();
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -117,7 +186,14 @@ public class Tuple implements Serializable {
     {
         // some code goes here
         // return null;
-        return this.tuple_data.values().iterator();
+        List<Field> set = new ArrayList<>(this.fields.length);
+        for (int i = 0; i < this.fields.length; i++) {
+            Field f = getField(i);
+            if (f != null) {
+                set.add(f);
+            }
+        }
+        return set.iterator();
     }
 
     /**
@@ -126,6 +202,8 @@ public class Tuple implements Serializable {
     public void resetTupleDesc(TupleDesc td)
     {
         // some code goes here
+        // views decode fields with the types of the original TupleDesc
+        materialize();
         this.td = td;
 //        return this.td = td;
     }
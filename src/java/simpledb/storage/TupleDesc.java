@@ -192,6 +192,20 @@ public class TupleDesc implements Serializable {
         return size;
     }
 
+    /**
+     * @return the offset (in bytes) of every field within a serialized tuple
+     *         of this TupleDesc; fields are stored in order, without padding.
+     */
+    public int[] getFieldOffsets() {
+        int[] offsets = new int[tditem_list.size()];
+        int offset = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            offset += tditem_list.get(i).fieldType.getLen();
+        }
+        return offsets;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -12,6 +12,7 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private boolean readOnly = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -27,10 +28,33 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction running as a read-only snapshot transaction. It
+     * sees the database as of the last commit before this call, takes no
+     * locks, and must not modify the database.
+     *
+     * @see simpledb.storage.BufferPool#beginSnapshot
+     */
+    public void startReadOnly() {
+        started = true;
+        readOnly = true;
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
 
+    /**
+     * Sets how long a lock request of this transaction may wait before the
+     * transaction is aborted, instead of the lock manager's default.
+     *
+     * @param millis the timeout in milliseconds; 0 means no timeout
+     */
+    public void setLockTimeout(long millis) {
+        Database.getBufferPool().getLockManager().setLockTimeout(tid, millis);
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -44,7 +68,11 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            // nothing to log or roll back
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
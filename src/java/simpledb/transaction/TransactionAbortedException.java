@@ -8,4 +8,11 @@ public class TransactionAbortedException extends Exception {
 
     public TransactionAbortedException() {
     }
+
+    /**
+     * @param message why the transaction was aborted
+     */
+    public TransactionAbortedException(String message) {
+        super(message);
+    }
 }
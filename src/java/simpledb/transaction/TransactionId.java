@@ -12,15 +12,50 @@ public class TransactionId implements Serializable {
 
     static final AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final long startTimestamp;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        startTimestamp = myid;
+    }
+
+    /**
+     * Creates the id of a transaction that retries an aborted one. The new
+     * transaction keeps the start timestamp of the aborted one, so under
+     * timestamp-based deadlock prevention it grows older with every retry
+     * instead of being aborted over and over.
+     *
+     * @param retryOf the id of the aborted transaction
+     */
+    public TransactionId(TransactionId retryOf) {
+        myid = counter.getAndIncrement();
+        startTimestamp = retryOf.startTimestamp;
     }
 
     public long getId() {
         return myid;
     }
 
+    /**
+     * @return when this transaction, or the first transaction it retries,
+     *         started; timestamps only grow, so a smaller one means an older
+     *         transaction
+     */
+    public long getStartTimestamp() {
+        return startTimestamp;
+    }
+
+    /**
+     * @return true if this transaction is older than the other one, by start
+     *         timestamp and then by id
+     */
+    public boolean isOlderThan(TransactionId other) {
+        if (startTimestamp != other.startTimestamp) {
+            return startTimestamp < other.startTimestamp;
+        }
+        return myid < other.myid;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -1,6 +1,7 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.index.*;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -176,6 +177,31 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	/**
+	 * An insert that does not split a page keeps only the leaf page locked:
+	 * the root pointer and internal pages are latched during the descent
+	 */
+	@Test
+	public void testInsertLocksOnlyLeafPage() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+		Database.resetBufferPool(500);
+		BTreePageId rootId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		// the leaf pages are full, so the first insert splits one
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {1, 1}));
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		List<Page> dirty = bf.insertTuple(tid, BTreeUtility.getBTreeTuple(new int[] {1, 1}));
+		assertEquals(1, dirty.size());
+		Set<PageId> locked = Database.getBufferPool().getLockManager().getLockedPages(tid);
+		assertEquals(Collections.singleton(dirty.get(0).getId()), locked);
+		assertEquals(BTreePageId.LEAF, ((BTreePageId) dirty.get(0).getId()).pgcateg());
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
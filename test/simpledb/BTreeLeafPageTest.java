@@ -306,6 +306,53 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.insertTuple() and BTreeLeafPage.iterator(Field, boolean)
+	 * on a page with empty slots between the used ones
+	 */
+	@Test public void searchWithEmptySlots() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+
+		// delete every other tuple to leave gaps between the used slots
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext()) {
+			page.deleteTuple(it.next());
+			if (it.hasNext())
+				it.next();
+		}
+		for (int i = 0; i < 100; i++)
+			page.insertTuple(BTreeUtility.getBTreeTuple(i * 655, 2));
+
+		// the tuples are still in sorted order
+		int prev = Integer.MIN_VALUE;
+		it = page.iterator();
+		while (it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(prev <= key);
+			prev = key;
+		}
+
+		// iterating from a key starts at the first tuple with a key greater than or equal
+		// to it, or greater than it if not inclusive
+		for (int k = -1; k < 66000; k += 997) {
+			IntField key = new IntField(k);
+			Tuple first = null;
+			Tuple firstGreater = null;
+			for (it = page.iterator(); it.hasNext(); ) {
+				Tuple tup = it.next();
+				int v = ((IntField) tup.getField(0)).getValue();
+				if (first == null && v >= k)
+					first = tup;
+				if (firstGreater == null && v > k)
+					firstGreater = tup;
+			}
+			Iterator<Tuple> from = page.iterator(key, true);
+			assertEquals(first, from.hasNext() ? from.next() : null);
+			from = page.iterator(key, false);
+			assertEquals(firstGreater, from.hasNext() ? from.next() : null);
+		}
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.deleteTuple() with false tuples
 	 */
@@ -1,7 +1,14 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -13,11 +20,15 @@ import org.junit.Test;
 
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
 
 public class CatalogTest extends SimpleDbTestBase {
 	private static final Random r = new Random();
@@ -98,6 +109,42 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Unit test for the mmap annotation of Catalog.loadSchema()
+     */
+    @Test public void loadSchemaMemoryMapped() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File data = SystemTestUtil.createRandomHeapFileUnopened(2, 1000, 1000, null, tuples);
+        File dir = Files.createTempDirectory("catalog").toFile();
+        dir.deleteOnExit();
+        String mapped = "m" + r.nextInt(Integer.MAX_VALUE);
+        File table = new File(dir, mapped + ".dat");
+        table.deleteOnExit();
+        Files.move(data.toPath(), table.toPath());
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        Files.write(schema.toPath(), Arrays.asList(
+                mapped + " (a int pk, b int) mmap",
+                "plain" + mapped + " (c int)"));
+
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(mapped));
+        assertTrue(hf.isMemoryMapped());
+        assertEquals("a", Database.getCatalog().getPrimaryKey(hf.getId()));
+        HeapFile plain = (HeapFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("plain" + mapped));
+        assertFalse(plain.isMemoryMapped());
+
+        SystemTestUtil.matchTuples(hf, tuples);
+        try {
+            hf.insertTuple(new TransactionId(), new Tuple(hf.getTupleDesc()));
+            Assert.fail("memory-mapped tables are read-only");
+        } catch (DbException e) {
+            // Expected to get here
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -7,10 +7,15 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
+import simpledb.lock.LockManager;
+import simpledb.lock.VictimPolicy;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
@@ -219,6 +224,78 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Only the victim chosen by the lock manager's victim policy is aborted;
+   * the other transaction of the cycle gets its lock once the victim is gone.
+   */
+  @Test public void testYoungestIsVictim() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setDeadlockMode(LockManager.DeadlockMode.DETECT);
+    lm.setVictimPolicy(VictimPolicy.YOUNGEST);
+
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+
+    // the grabber of the victim aborts it, which releases its locks
+    lg2Write.join(POLL_INTERVAL * 10);
+    lg1Write.join(POLL_INTERVAL * 10);
+    // tid2 started after tid1
+    assertNotNull(lg2Write.getError());
+    assertNull(lg1Write.getError());
+    assertTrue(lg1Write.acquired());
+    assertEquals(1, lm.getDeadlockCount());
+  }
+
+  /**
+   * Under wait-die a younger transaction aborts instead of waiting for an
+   * older one, and an older one waits for a younger one.
+   */
+  @Test public void testWaitDie() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setDeadlockMode(LockManager.DeadlockMode.WAIT_DIE);
+
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1Write.acquired());
+    assertNull(lg1Write.getError());
+
+    // tid2 is younger, so it dies and releases p1
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2Write.join(POLL_INTERVAL * 10);
+    lg1Write.join(POLL_INTERVAL * 10);
+    assertNotNull(lg2Write.getError());
+    assertTrue(lg1Write.acquired());
+    assertEquals(0, lm.getDeadlockCount());
+  }
+
+  /**
+   * Under wound-wait an older transaction aborts the younger holders of the
+   * lock it wants, and a younger one waits for an older one.
+   */
+  @Test public void testWoundWait() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setDeadlockMode(LockManager.DeadlockMode.WOUND_WAIT);
+
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write.acquired());
+    assertNull(lg2Write.getError());
+
+    // tid1 is older, so it wounds tid2, which aborts while it waits
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    lg2Write.join(POLL_INTERVAL * 10);
+    lg1Write.join(POLL_INTERVAL * 10);
+    assertNotNull(lg2Write.getError());
+    assertTrue(lg1Write.acquired());
+    assertEquals(0, lm.getDeadlockCount());
+  }
+
   /**
    * JUnit suite target
    */
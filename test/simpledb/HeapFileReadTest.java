@@ -81,6 +81,20 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.close(): the file is reopened on its next use.
+     */
+    @Test
+    public void readPageAfterClose() {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] before = hf.readPage(pid).getPageData();
+        hf.close();
+        assertArrayEquals(before, hf.readPage(pid).getPageData());
+        Database.getCatalog().clear();
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertArrayEquals(before, hf.readPage(pid).getPageData());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
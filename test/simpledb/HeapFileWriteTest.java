@@ -12,6 +12,9 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
@@ -90,6 +93,103 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Inserts should go straight to a page with room, using the free space
+     * map, even after the table is reopened, and reuse room freed by deletes.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        File fsm = FreeSpaceMap.mapFileFor(empty.getFile());
+        Tuple first = null;
+        for (int i = 0; i < 504 * 2 + 1; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+            if (first == null) {
+                first = t;
+            }
+        }
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // reopen the table with a cold buffer pool
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(reopened);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        Page page = reopened.insertTuple(tid, Utility.getHeapTuple(0, 2)).get(0);
+        assertEquals(2, page.getId().getPageNumber());
+        assertEquals(1, bp.getMissCount());
+
+        reopened.deleteTuple(tid, first);
+        page = reopened.insertTuple(tid, Utility.getHeapTuple(0, 2)).get(0);
+        assertEquals(0, page.getId().getPageNumber());
+        assertEquals(3, reopened.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // the free space map goes away with its table
+        assertTrue(fsm.exists());
+        reopened.delete();
+        assertFalse(reopened.getFile().exists());
+        assertFalse(fsm.exists());
+        tid = new TransactionId();
+    }
+
+    /**
+     * A page filled by an insert that is rolled back has room again.
+     */
+    @Test public void abortedInsertLeavesRoom() throws Exception {
+        for (int i = 0; i < 503; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        TransactionId aborted = new TransactionId();
+        Database.getBufferPool().insertTuple(aborted, empty.getId(), Utility.getHeapTuple(503, 2));
+        Database.getBufferPool().transactionComplete(aborted, false);
+
+        tid = new TransactionId();
+        Page page = empty.insertTuple(tid, Utility.getHeapTuple(503, 2)).get(0);
+        assertEquals(0, page.getId().getPageNumber());
+        assertEquals(1, empty.numPages());
+    }
+
+    /**
+     * A free space map left behind by a table that was rewritten is emptied,
+     * and stays empty once the table grows back to the length it recorded.
+     */
+    @Test public void staleFreeSpaceMapIsEmptied() throws Exception {
+        File table = File.createTempFile("fsm", ".dat");
+        table.deleteOnExit();
+        FreeSpaceMap.mapFileFor(table).deleteOnExit();
+        writePages(table, 4);
+        FreeSpaceMap map = new FreeSpaceMap(table);
+        for (int i = 0; i < 4; i++) {
+            map.markFull(i);
+        }
+        map.close();
+
+        // the table is rewritten as two empty pages, then grows by one
+        writePages(table, 2);
+        map = new FreeSpaceMap(table);
+        assertEquals(0, map.firstPageWithSpace(2));
+        try (FileOutputStream out = new FileOutputStream(table, true)) {
+            out.write(HeapPage.createEmptyPageData());
+        }
+        map.tableResized();
+        map.close();
+
+        map = new FreeSpaceMap(table);
+        assertEquals(0, map.firstPageWithSpace(3));
+        map.close();
+    }
+
+    private static void writePages(File f, int pages) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            for (int i = 0; i < pages; i++) {
+                out.write(HeapPage.createEmptyPageData());
+            }
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -14,6 +15,7 @@ import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -131,6 +133,54 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples handed out by HeapPage.iterator() keep their values when the
+     * page is changed afterwards, even if their slot is reused.
+     */
+    @Test public void iteratedTuplesSurviveChanges() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        int slot = first.getRecordId().getTupleNumber();
+        int[] values = new int[] {
+            ((IntField) first.getField(0)).getValue(),
+            ((IntField) first.getField(1)).getValue() };
+        byte[] before = page.getPageData();
+
+        page.deleteTuple(first);
+        Tuple addition = Utility.getHeapTuple(new int[] { values[0] + 1, values[1] + 1 });
+        page.insertTuple(addition);
+        assertEquals(slot, addition.getRecordId().getTupleNumber());
+
+        assertEquals(values[0], ((IntField) first.getField(0)).getValue());
+        assertEquals(values[1], ((IntField) first.getField(1)).getValue());
+        assertTrue(TestUtil.compareTuples(addition, page.iterator().next()));
+
+        // undoing the change gives back the original bytes
+        page.deleteTuple(addition);
+        page.insertTuple(first);
+        assertArrayEquals(before, page.getPageData());
+    }
+
+    /**
+     * Before-images share the page bytes but do not see later changes, and
+     * neither does the array the page was created from.
+     */
+    @Test public void beforeImageIsCopyOnWrite() throws Exception {
+        byte[] data = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, data);
+        byte[] original = page.getPageData().clone();
+        HeapPage before = page.getBeforeImage();
+
+        page.deleteTuple(page.iterator().next());
+        page.insertTuple(Utility.getHeapTuple(new int[] { -1, -1 }));
+        assertArrayEquals(original, before.getPageData());
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, data);
+        assertFalse(Arrays.equals(original, page.getPageData()));
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
     /**
      * JUnit suite target
      */
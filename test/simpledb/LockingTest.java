@@ -4,13 +4,18 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
+import simpledb.lock.LockManager;
+import simpledb.lock.LockMode;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -193,6 +198,123 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() and BufferPool.releasePage()
+   * assuming locking.
+   * A writer waits until every reader has released the page, and then
+   * acquires the lock without being asked again.
+   */
+  @Test public void writerWaitsForAllReaders() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_WRITE);
+    t.start();
+    Thread.sleep(TIMEOUT);
+    assertEquals(false, t.acquired());
+
+    bp.unsafeReleasePage(tid1, p0);
+    Thread.sleep(TIMEOUT);
+    assertEquals(false, t.acquired());
+
+    bp.unsafeReleasePage(tid2, p0);
+    t.join(TIMEOUT * 10);
+    assertEquals(true, t.acquired());
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A lock request that waits longer than its transaction's lock timeout
+   * aborts the transaction, and its wait is counted.
+   */
+  @Test public void lockWaitTimesOut() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setLockTimeout(tid2, TIMEOUT);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+
+    long start = System.currentTimeMillis();
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_ONLY);
+      fail("expected the lock wait to time out");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertTrue(System.currentTimeMillis() - start >= TIMEOUT);
+    assertEquals(1, lm.getTimeoutCount());
+    assertEquals(1, lm.getWaitHistogram(LockManager.PageCategory.HEAP).getCount());
+    assertTrue(lm.getWaitHistogram(LockManager.PageCategory.HEAP).getMax() >= TIMEOUT);
+    assertEquals(0, lm.getWaitHistogram(LockManager.PageCategory.BTREE_LEAF).getCount());
+  }
+
+  /**
+   * Unit test for lock escalation.
+   * A transaction reading more pages of a table than the escalation
+   * threshold trades its page locks for a shared table lock, which keeps
+   * writers out of every page of the table.
+   */
+  @Test public void readerIsEscalatedToTableLock() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setEscalationThreshold(2);
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockMode.IS, lm.getTableLockMode(tid1, empty.getId()));
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+
+    assertEquals(1, lm.getEscalationCount());
+    assertEquals(LockMode.S, lm.getTableLockMode(tid1, empty.getId()));
+    assertTrue(lm.getLockedPages(tid1).isEmpty());
+    assertTrue(bp.holdsLock(tid1, p0));
+    grabLock(tid2, p1, Permissions.READ_ONLY, true);
+    grabLock(tid2, p1, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for lock escalation.
+   * Escalation never waits: while another transaction writes pages of the
+   * table, the reader keeps its page locks.
+   */
+  @Test public void escalationYieldsToWriters() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setEscalationThreshold(1);
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    assertEquals(LockMode.IX, lm.getTableLockMode(tid2, empty.getId()));
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+
+    assertEquals(0, lm.getEscalationCount());
+    assertEquals(LockMode.IS, lm.getTableLockMode(tid1, empty.getId()));
+    assertEquals(2, lm.getLockedPages(tid1).size());
+    grabLock(tid2, p0, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for the lock table.
+   * Locks are dropped once nobody holds them, so the lock table only grows
+   * with the pages locked by running transactions.
+   */
+  @Test public void releasedLocksAreDropped() throws Exception {
+    LockManager lm = bp.getLockManager();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    // two pages and their table
+    assertEquals(3, lm.getLockTableSize());
+    assertEquals(2, lm.getTransactionCount());
+
+    bp.transactionComplete(tid1);
+    assertEquals(2, lm.getLockTableSize());
+    bp.transactionComplete(tid2);
+    assertEquals(0, lm.getLockTableSize());
+    assertEquals(0, lm.getTransactionCount());
+
+    // and come back when needed
+    grabLock(tid1, p0, Permissions.READ_WRITE, true);
+    grabLock(tid2, p0, Permissions.READ_ONLY, false);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,161 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.DbException;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LruKReplacementPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * CLOCK gives a second chance to pages that were referenced since the
+     * hand last passed them.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockReplacementPolicy();
+        for (int i = 0; i < 3; i++)
+            policy.recordAccess(pid(i));
+        policy.recordAccess(pid(0));
+
+        assertEquals(pid(1), policy.evict(p -> true));
+        assertEquals(pid(2), policy.evict(p -> true));
+        assertEquals(pid(0), policy.evict(p -> true));
+        assertNull(policy.evict(p -> true));
+        assertEquals(0, policy.size());
+    }
+
+    /**
+     * Pages the caller refuses to evict are skipped, and removed pages are
+     * never returned.
+     */
+    @Test public void clockSkipsPinnedAndRemoved() {
+        ReplacementPolicy policy = new ClockReplacementPolicy();
+        for (int i = 0; i < 4; i++)
+            policy.recordAccess(pid(i));
+        policy.remove(pid(1));
+
+        assertEquals(pid(2), policy.evict(p -> !p.equals(pid(0))));
+        assertNull(policy.evict(p -> false));
+        assertEquals(2, policy.size());
+
+        // freed slots are reused
+        policy.recordAccess(pid(5));
+        assertEquals(3, policy.size());
+    }
+
+    /**
+     * LRU-2 evicts pages seen only once before pages seen twice, even if the
+     * pages seen once were used more recently (scan resistance).
+     */
+    @Test public void lruKScanResistant() {
+        ReplacementPolicy policy = new LruKReplacementPolicy(2);
+        policy.recordAccess(pid(0));
+        policy.recordAccess(pid(0));
+        policy.recordAccess(pid(1));
+        policy.recordAccess(pid(1));
+        // a "scan" touches new pages once each
+        for (int i = 10; i < 13; i++)
+            policy.recordAccess(pid(i));
+
+        assertEquals(pid(10), policy.evict(p -> true));
+        assertEquals(pid(11), policy.evict(p -> true));
+        assertEquals(pid(12), policy.evict(p -> true));
+        // among hot pages, the one with the oldest second-to-last access goes
+        assertEquals(pid(0), policy.evict(p -> true));
+        assertEquals(pid(1), policy.evict(p -> true));
+        assertNull(policy.evict(p -> true));
+    }
+
+    @Test public void lruKSkipsUnevictable() {
+        ReplacementPolicy policy = new LruKReplacementPolicy();
+        policy.recordAccess(pid(0));
+        policy.recordAccess(pid(1));
+        assertEquals(pid(1), policy.evict(p -> p.equals(pid(1))));
+        assertEquals(1, policy.size());
+        policy.remove(pid(0));
+        assertNull(policy.evict(p -> true));
+    }
+
+    /**
+     * The buffer pool counts hits and misses for the chosen policy.
+     */
+    @Test public void bufferPoolHitRate() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        int numPages = hf.numPages();
+        assertTrue(numPages > 2);
+        BufferPool bp = Database.resetBufferPool(numPages, new LruKReplacementPolicy());
+        TransactionId tid = new TransactionId();
+
+        for (int round = 0; round < 2; round++)
+            for (int i = 0; i < numPages; i++)
+                bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+
+        assertEquals(numPages, bp.getMissCount());
+        assertEquals(numPages, bp.getHitCount());
+        assertEquals(0, bp.getEvictionCount());
+        assertEquals(0.5, bp.getHitRate(), 1e-9);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pinned pages stay in the pool while other pages cycle through it, and
+     * their pins go away when the transaction completes.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        int numPages = hf.numPages();
+        assertTrue(numPages > 3);
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+
+        bp.pinPage(tid, first, Permissions.READ_ONLY);
+        bp.pinPage(tid, first, Permissions.READ_ONLY);
+        assertEquals(2, bp.getPinCount(first));
+        for (int i = 1; i < numPages; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(numPages - 2, bp.getEvictionCount());
+        assertTrue(bp.holdsLock(tid, first));
+        assertEquals(2, bp.getPinCount(first));
+
+        // with every frame pinned there is nothing to evict
+        HeapPageId last = new HeapPageId(hf.getId(), numPages - 1);
+        bp.pinPage(tid, last, Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(tid, first);
+        assertEquals(1, bp.getPinCount(first));
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(first));
+        assertEquals(0, bp.getPinCount(last));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+    private PageId p0;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test: a table with one
+     * committed tuple.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(tid, true);
+        p0 = new HeapPageId(empty.getId(), 0);
+    }
+
+    private int tuplesSeenBy(TransactionId tid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+        int n = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * A snapshot transaction takes no locks, so writers do not wait for it,
+     * and it keeps reading the data committed before it began.
+     */
+    @Test public void snapshotReadsCommittedDataWithoutLocks() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        assertEquals(1, tuplesSeenBy(snapshot));
+        assertEquals(0, bp.getLockManager().getLockTableSize());
+
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(1, tuplesSeenBy(snapshot));
+        bp.transactionComplete(writer, true);
+        assertEquals(1, tuplesSeenBy(snapshot));
+        assertEquals(1, bp.getVersionCount());
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(2, tuplesSeenBy(later));
+
+        bp.transactionComplete(snapshot, true);
+        assertEquals(0, bp.getVersionCount());
+        bp.transactionComplete(later, true);
+    }
+
+    /**
+     * A page written before its transaction committed may be evicted and
+     * read back from disk; snapshots still read its committed image.
+     */
+    @Test public void snapshotIgnoresPagesFlushedBeforeCommit() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10000, null, null);
+        bp = Database.resetBufferPool(3);
+
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(2, 2));
+        bp.flushPages(writer);
+
+        // reading the pages of another table evicts the written page
+        TransactionId reader = new TransactionId();
+        for (int i = 0; i < other.numPages(); i++) {
+            bp.getPage(reader, new HeapPageId(other.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(reader, true);
+
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        long misses = bp.getMissCount();
+        assertEquals(1, tuplesSeenBy(snapshot));
+        assertEquals(misses + 1, bp.getMissCount());
+        bp.transactionComplete(writer, true);
+        assertEquals(1, tuplesSeenBy(snapshot));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(2, tuplesSeenBy(later));
+        bp.transactionComplete(snapshot, true);
+        bp.transactionComplete(later, true);
+    }
+
+    /**
+     * A snapshot transaction cannot modify pages.
+     */
+    @Test public void snapshotIsReadOnly() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        try {
+            bp.getPage(snapshot, p0, Permissions.READ_WRITE);
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(snapshot, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -378,6 +378,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            FreeSpaceMap.mapFileFor(emptyFile).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
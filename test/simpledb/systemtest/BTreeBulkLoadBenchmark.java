@@ -0,0 +1,93 @@
+package simpledb.systemtest;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+
+/**
+ * Measures the ingest rate of loading a batch of rows into an existing B+ tree
+ * with BTreeBulkLoader, against inserting them one at a time with
+ * BufferPool.insertTuple().
+ * <p>
+ * Builds a random tree with BTreeUtility.createRandomBTreeFile, then loads a
+ * batch of random rows, with keys beyond the largest key in the tree, in one
+ * transaction. The one-at-a-time inserts load a twentieth of the batch, in
+ * transactions of INSERTS_PER_TRANSACTION rows, since a transaction cannot
+ * dirty more pages than the buffer pool holds. Both rates include the
+ * commits.
+ * <p>
+ * Usage, after ant testcompile:
+ * <pre>
+ *     java -cp bin/src:bin/test:lib/* simpledb.systemtest.BTreeBulkLoadBenchmark [rows] [tree rows]
+ * </pre>
+ */
+public class BTreeBulkLoadBenchmark {
+
+    private static final int POOL_PAGES = 1000;
+    private static final int INSERTS_PER_TRANSACTION = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int treeRows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        Database.reset();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, treeRows, null, null, 0);
+        Database.resetBufferPool(POOL_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        long start = System.nanoTime();
+        new BTreeBulkLoader(bf).load(t.getId(), randomTuples(rows, 1));
+        t.commit();
+        report("bulk load", rows, start);
+
+        Database.reset();
+        bf = BTreeUtility.createRandomBTreeFile(2, treeRows, null, null, 0);
+        Database.resetBufferPool(POOL_PAGES);
+        int inserts = rows / 20;
+        Iterator<Tuple> it = randomTuples(inserts, 1);
+        start = System.nanoTime();
+        for (int done = 0; done < inserts; ) {
+            t = new Transaction();
+            t.start();
+            for (int i = 0; i < INSERTS_PER_TRANSACTION && done < inserts; i++, done++) {
+                Database.getBufferPool().insertTuple(t.getId(), bf.getId(), it.next());
+            }
+            t.commit();
+        }
+        report("insertTuple", inserts, start);
+    }
+
+    /**
+     * @return rows of random values, with keys beyond the keys of
+     *         createRandomBTreeFile
+     */
+    private static Iterator<Tuple> randomTuples(int rows, long seed) {
+        Random rand = new Random(seed);
+        return new Iterator<Tuple>() {
+            private int n = 0;
+
+            public boolean hasNext() {
+                return n < rows;
+            }
+
+            public Tuple next() {
+                n++;
+                return BTreeUtility.getBTreeTuple(new int[] {
+                        BTreeUtility.MAX_RAND_VALUE + rand.nextInt(Integer.MAX_VALUE - BTreeUtility.MAX_RAND_VALUE),
+                        rand.nextInt()});
+            }
+        };
+    }
+
+    private static void report(String what, int rows, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %d rows in %.2f s, %.2f million rows per minute%n",
+                what, rows, seconds, rows / seconds * 60 / 1e6);
+    }
+}
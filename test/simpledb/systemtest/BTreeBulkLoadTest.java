@@ -0,0 +1,108 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.index.*;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static List<List<Integer>> toLists(List<Tuple> tuples) {
+		List<List<Integer>> lists = new ArrayList<>();
+		for (Tuple t : tuples) {
+			lists.add(BTreeUtility.tupleToList(t));
+		}
+		return lists;
+	}
+
+	@Test public void loadIntoEmptyTree() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		List<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 20000, 0, BTreeUtility.MAX_RAND_VALUE);
+
+		// sort in runs, so the runs are merged
+		BTreeBulkLoader loader = new BTreeBulkLoader(empty);
+		loader.setSortBufferSize(3000);
+		loader.setFillFactor(0.75);
+		assertEquals(20000, loader.load(tid, tuples.iterator()));
+
+		BTreeChecker.checkRep(empty, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(empty, tid, toLists(tuples));
+
+		// the leaf pages are three quarters full
+		int leaves = (int) Math.ceil(20000 / (0.75 * BTreeUtility.getNumTuplesPerPage(2)));
+		assertTrue(empty.numPages() <= leaves + 2);
+	}
+
+	@Test public void loadIntoExistingTree() throws Exception {
+		List<List<Integer>> expected = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, expected, 0);
+		Database.resetBufferPool(100);
+
+		// half of the tuples fall into the key range of the tree, half beyond it
+		List<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 5000, 0, BTreeUtility.MAX_RAND_VALUE);
+		tuples.addAll(BTreeUtility.generateRandomTuples(2, 5000,
+				BTreeUtility.MAX_RAND_VALUE, 4 * BTreeUtility.MAX_RAND_VALUE));
+		Collections.shuffle(tuples, new Random(42));
+		expected.addAll(toLists(tuples));
+
+		assertEquals(10000, new BTreeBulkLoader(bf).load(tid, tuples.iterator()));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(bf, tid, expected);
+	}
+
+	@Test public void abortLoad() throws Exception {
+		List<List<Integer>> expected = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, expected, 0);
+		Database.resetBufferPool(100);
+
+		// the load writes pages before the transaction aborts
+		Transaction t = new Transaction();
+		t.start();
+		List<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 30000, 0, 4 * BTreeUtility.MAX_RAND_VALUE);
+		new BTreeBulkLoader(bf).load(t.getId(), tuples.iterator());
+		t.transactionComplete(true);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(bf, tid, expected);
+	}
+
+	/**
+	 * Make test compatible with older version of ant.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -0,0 +1,209 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+	private static final Type[] TYPES = {Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE};
+
+	// keyed on (name, number)
+	private static final int[] KEY_FIELDS = {0, 1};
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		// the tuples of a test are inserted in one transaction
+		Database.resetBufferPool(500);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	private static Tuple tuple(TupleDesc td, String name, int number, int value) {
+		Tuple t = new Tuple(td);
+		t.setField(0, new StringField(name, Type.STRING_LEN));
+		t.setField(1, new IntField(number));
+		t.setField(2, new IntField(value));
+		return t;
+	}
+
+	private static StringField name(int i) {
+		return new StringField(String.format("name%03d", i), Type.STRING_LEN);
+	}
+
+	private static BTreeFile createEmptyTree() throws Exception {
+		File file = File.createTempFile("composite", ".dat");
+		file.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), TYPES, KEY_FIELDS);
+	}
+
+	/**
+	 * @return random tuples with 100 names and 50 numbers each
+	 */
+	private static List<Tuple> randomTuples(BTreeFile bf, int n, long seed) {
+		Random rand = new Random(seed);
+		List<Tuple> tuples = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			tuples.add(tuple(bf.getTupleDesc(), name(rand.nextInt(100)).getValue(), rand.nextInt(50), i));
+		}
+		return tuples;
+	}
+
+	private List<Tuple> scan(BTreeFile bf, IndexPredicate ipred) throws Exception {
+		List<Tuple> result = new ArrayList<>();
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		while (it.hasNext()) {
+			result.add(it.next());
+		}
+		it.close();
+		return result;
+	}
+
+	/**
+	 * Checks that an index scan returns exactly the tuples whose key matches the
+	 * predicate, in key order.
+	 */
+	private void checkScan(BTreeFile bf, List<Tuple> tuples, IndexPredicate ipred) throws Exception {
+		List<Tuple> result = scan(bf, ipred);
+		Field prev = null;
+		for (Tuple t : result) {
+			Field key = bf.getKey(t);
+			assertTrue(key.compare(ipred.getOp(), ipred.getField()));
+			assertTrue(prev == null || prev.compare(Op.LESS_THAN_OR_EQ, key));
+			prev = key;
+		}
+		int expected = 0;
+		for (Tuple t : tuples) {
+			if (bf.getKey(t).compare(ipred.getOp(), ipred.getField())) {
+				expected++;
+			}
+		}
+		assertEquals(expected, result.size());
+	}
+
+	@Test public void insertAndScan() throws Exception {
+		BTreeFile bf = createEmptyTree();
+		List<Tuple> tuples = randomTuples(bf, 3000, 0);
+		for (Tuple t : tuples) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		// the tree is deep enough that scans cross internal pages
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+
+		// a prefix of the key: all tuples with a name
+		checkScan(bf, tuples, new IndexPredicate(Op.EQUALS, name(42)));
+		checkScan(bf, tuples, new IndexPredicate(Op.EQUALS, new CompositeField(name(42))));
+		checkScan(bf, tuples, new IndexPredicate(Op.LESS_THAN, name(10)));
+		checkScan(bf, tuples, new IndexPredicate(Op.GREATER_THAN, name(90)));
+
+		// the whole key
+		checkScan(bf, tuples, new IndexPredicate(Op.EQUALS, new CompositeField(name(42), new IntField(7))));
+		checkScan(bf, tuples, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new CompositeField(name(97), new IntField(25))));
+		checkScan(bf, tuples, new IndexPredicate(Op.LESS_THAN_OR_EQ, new CompositeField(name(3), new IntField(25))));
+
+		// delete the tuples of half of the names
+		List<Tuple> remaining = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		List<Tuple> all = new ArrayList<>();
+		while (it.hasNext()) {
+			all.add(it.next());
+		}
+		it.close();
+		for (Tuple t : all) {
+			if (((StringField) t.getField(0)).getValue().compareTo("name050") < 0) {
+				Database.getBufferPool().deleteTuple(tid, t);
+			} else {
+				remaining.add(t);
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		checkScan(bf, remaining, new IndexPredicate(Op.EQUALS, name(42)));
+		checkScan(bf, remaining, new IndexPredicate(Op.EQUALS, name(60)));
+	}
+
+	@Test public void bulkLoad() throws Exception {
+		BTreeFile bf = createEmptyTree();
+		List<Tuple> tuples = randomTuples(bf, 3000, 1);
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.setSortBufferSize(1000);
+		assertEquals(3000, loader.load(tid, tuples.iterator()));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		checkScan(bf, tuples, new IndexPredicate(Op.GREATER_THAN_OR_EQ, name(0)));
+		checkScan(bf, tuples, new IndexPredicate(Op.EQUALS, name(17)));
+		checkScan(bf, tuples, new IndexPredicate(Op.GREATER_THAN, new CompositeField(name(17), new IntField(30))));
+	}
+
+	@Test public void internalPageCapacity() throws Exception {
+		BTreeFile bf = createEmptyTree();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), KEY_FIELDS);
+
+		// a single key field is rejected
+		BTreePageId child1 = new BTreePageId(bf.getId(), 2, BTreePageId.LEAF);
+		BTreePageId child2 = new BTreePageId(bf.getId(), 3, BTreePageId.LEAF);
+		try {
+			page.insertEntry(new BTreeEntry(name(1), child1, child2));
+			fail("inserted a key without all key fields");
+		} catch (DbException e) {
+			// expected
+		}
+
+		// the keys are compressed, so many more entries fit than slots of a string, an
+		// int and a child pointer would
+		List<Field> keys = new ArrayList<>();
+		BTreePageId left = child1;
+		for (int i = 0; page.hasRoomFor(new CompositeField(name(i), new IntField(i))); i++) {
+			keys.add(new CompositeField(name(i), new IntField(i)));
+			BTreePageId right = new BTreePageId(bf.getId(), i + 3, BTreePageId.LEAF);
+			page.insertEntry(new BTreeEntry(keys.get(i), left, right));
+			left = right;
+		}
+		int entrySize = Type.STRING_TYPE.getLen() + 2 * Type.INT_TYPE.getLen();
+		int slots = (BufferPool.getPageSize() * 8 - 2 * 32 - 8 - 1) / (entrySize * 8 + 1);
+		assertTrue(page.getNumEntries() > 4 * slots);
+
+		// the keys survive a round trip through the page data
+		BTreeInternalPage copy = new BTreeInternalPage(pid, page.getPageData(), KEY_FIELDS);
+		Iterator<BTreeEntry> it = copy.iterator();
+		for (Field key : keys) {
+			assertEquals(key, it.next().getKey());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	/**
+	 * Make test compatible with older version of ant.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
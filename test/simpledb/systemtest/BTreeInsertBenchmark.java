@@ -0,0 +1,72 @@
+package simpledb.systemtest;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+
+/**
+ * Measures how the throughput of concurrent B+ tree inserts scales with the
+ * number of threads.
+ * <p>
+ * For each number of threads, builds a random tree with
+ * BTreeUtility.createRandomBTreeFile and runs that many threads for a fixed
+ * time. Each thread inserts random tuples, one per transaction, through
+ * BTreeUtility.BTreeInserter. Aborted transactions are counted and not
+ * retried.
+ * <p>
+ * Usage, after ant testcompile:
+ * <pre>
+ *     java -cp bin/src:bin/test:lib/* simpledb.systemtest.BTreeInsertBenchmark [max threads] [seconds]
+ * </pre>
+ */
+public class BTreeInsertBenchmark {
+
+    private static final int ROWS = 31000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long millis = (long) (1000 * (args.length > 1 ? Double.parseDouble(args[1]) : 3));
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Database.reset();
+            BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+            Database.resetBufferPool(4 * bf.numPages() + 1000);
+
+            AtomicLong committed = new AtomicLong();
+            AtomicLong aborted = new AtomicLong();
+            long deadline = System.currentTimeMillis() + millis;
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final long seed = i;
+                workers[i] = new Thread(() -> {
+                    Random rand = new Random(seed);
+                    BlockingQueue<List<Integer>> inserted = new LinkedBlockingQueue<>();
+                    BTreeUtility.BTreeInserter inserter = null;
+                    while (System.currentTimeMillis() < deadline) {
+                        int[] tuple = {rand.nextInt(BTreeUtility.MAX_RAND_VALUE), rand.nextInt()};
+                        if (inserter == null) {
+                            inserter = new BTreeUtility.BTreeInserter(bf, tuple, inserted);
+                            inserter.run();
+                        } else {
+                            inserter.rerun(bf, tuple, inserted);
+                        }
+                        (inserter.succeeded() ? committed : aborted).incrementAndGet();
+                        inserted.clear();
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread w : workers) {
+                w.join();
+            }
+            System.out.printf("%d threads: %.0f inserts/s, %d aborted%n",
+                    threads, committed.get() / (millis / 1000.0), aborted.get());
+        }
+    }
+}
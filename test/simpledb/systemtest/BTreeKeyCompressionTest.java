@@ -0,0 +1,186 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeKeyCompressionTest extends SimpleDbTestBase {
+	private static final Type[] TYPES = {Type.STRING_TYPE, Type.INT_TYPE};
+	private static final String PREFIX = "https://example.com/customers/";
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	private static StringField url(int i) {
+		return new StringField(PREFIX + String.format("%08d", i), Type.STRING_LEN);
+	}
+
+	private static Tuple tuple(TupleDesc td, int i) {
+		Tuple t = new Tuple(td);
+		t.setField(0, url(i));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	/**
+	 * @return the internal pages of the tree, from the root down, level by level
+	 */
+	private List<BTreeInternalPage> internalPages(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		List<BTreeInternalPage> pages = new ArrayList<>();
+		List<BTreePageId> level = Collections.singletonList(rootPtr.getRootId());
+		while (level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+			List<BTreePageId> next = new ArrayList<>();
+			for (BTreePageId pid : level) {
+				BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+						tid, pid, Permissions.READ_ONLY);
+				pages.add(page);
+				Iterator<BTreeEntry> it = page.iterator();
+				BTreeEntry e = it.next();
+				next.add(e.getLeftChild());
+				next.add(e.getRightChild());
+				while (it.hasNext()) {
+					next.add(it.next().getRightChild());
+				}
+			}
+			level = next;
+		}
+		return pages;
+	}
+
+	private int count(BTreeFile bf, IndexPredicate ipred) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	@Test public void insertAndDelete() throws Exception {
+		File file = File.createTempFile("compressed", ".dat");
+		file.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), TYPES, new int[] {0});
+
+		List<Integer> values = new ArrayList<>();
+		for (int i = 0; i < 12000; i++) {
+			values.add(i);
+		}
+		Collections.shuffle(values, new Random(0));
+		for (int i : values) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(bf.getTupleDesc(), i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		// separators end at the first digit that tells the children apart, and most of
+		// each key is shared with the previous one, so several times as many entries fit
+		// on a page as slots for strings would
+		int slots = (BufferPool.getPageSize() * 8 - 2 * 32 - 8 - 1) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+		List<BTreeInternalPage> pages = internalPages(bf);
+		int entries = 0;
+		int truncated = 0;
+		for (BTreeInternalPage page : pages) {
+			entries += page.getNumEntries();
+			Iterator<BTreeEntry> it = page.iterator();
+			while (it.hasNext()) {
+				if (((StringField) it.next().getKey()).getValue().length() < url(0).getValue().length()) {
+					truncated++;
+				}
+			}
+		}
+		assertTrue(truncated > entries / 5);
+		// a root page above two pages of leaves, where slots would take a third level
+		assertEquals(3, pages.size());
+		assertTrue(entries > 8 * slots);
+
+		assertEquals(1, count(bf, new IndexPredicate(Op.EQUALS, url(4321))));
+		assertEquals(1000, count(bf, new IndexPredicate(Op.LESS_THAN, url(1000))));
+		assertEquals(2000, count(bf, new IndexPredicate(Op.GREATER_THAN_OR_EQ, url(10000))));
+
+		// delete all but every tenth tuple, so pages are merged and redistributed
+		List<Tuple> all = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			all.add(it.next());
+		}
+		it.close();
+		for (Tuple t : all) {
+			if (((IntField) t.getField(1)).getValue() % 10 != 0) {
+				Database.getBufferPool().deleteTuple(tid, t);
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(100, count(bf, new IndexPredicate(Op.LESS_THAN, url(1000))));
+		assertEquals(0, count(bf, new IndexPredicate(Op.EQUALS, url(4321))));
+		assertEquals(1, count(bf, new IndexPredicate(Op.EQUALS, url(4320))));
+
+		// the compressed pages read back from disk
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(1200, count(bf, new IndexPredicate(Op.GREATER_THAN_OR_EQ, url(0))));
+	}
+
+	@Test public void bulkLoad() throws Exception {
+		File file = File.createTempFile("compressed", ".dat");
+		file.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), TYPES, new int[] {0});
+
+		List<Tuple> tuples = new ArrayList<>();
+		for (int i = 0; i < 20000; i++) {
+			tuples.add(tuple(bf.getTupleDesc(), i));
+		}
+		assertEquals(20000, new BTreeBulkLoader(bf).load(tid, tuples.iterator()));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		// with slots for strings, every internal page above the leaves would only hold
+		// a few dozen of them
+		int slots = (BufferPool.getPageSize() * 8 - 2 * 32 - 8 - 1) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+		List<BTreeInternalPage> pages = internalPages(bf);
+		assertEquals(3, pages.size());
+		for (BTreeInternalPage page : pages.subList(1, pages.size())) {
+			assertTrue(page.getNumEntries() > 4 * slots);
+		}
+		assertEquals(20000, count(bf, new IndexPredicate(Op.GREATER_THAN_OR_EQ, url(0))));
+		assertEquals(1, count(bf, new IndexPredicate(Op.EQUALS, url(12345))));
+	}
+
+	/**
+	 * Make test compatible with older version of ant.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeKeyCompressionTest.class);
+	}
+}
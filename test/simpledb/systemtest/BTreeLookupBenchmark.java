@@ -0,0 +1,65 @@
+package simpledb.systemtest;
+
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures the throughput of B+ tree point lookups.
+ * <p>
+ * Builds a random tree of the given number of rows with
+ * BTreeUtility.createRandomBTreeFile, caches all of its pages, and then
+ * times equality lookups of random keys through BTreeFile.indexIterator(),
+ * so the time is spent descending the internal pages and searching the
+ * leaf rather than reading the disk.
+ * <p>
+ * Usage, after ant testcompile:
+ * <pre>
+ *     java -cp bin/src:bin/test:lib/* simpledb.systemtest.BTreeLookupBenchmark [rows] [lookups]
+ * </pre>
+ */
+public class BTreeLookupBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        Database.reset();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+        Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, bf.numPages() + 16));
+
+        Random rand = new Random(42);
+        TransactionId tid = new TransactionId();
+        long found = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                IntField key = new IntField(rand.nextInt(BTreeUtility.MAX_RAND_VALUE));
+                DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+                it.open();
+                while (it.hasNext()) {
+                    it.next();
+                    found++;
+                }
+                it.close();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            // the first round reads the pages and warms up the JIT
+            if (round > 0) {
+                System.out.printf("round %d: %.0f lookups/s%n", round, lookups / seconds);
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        System.out.printf("%d pages, %d tuples found%n", bf.numPages(), found);
+    }
+}
@@ -11,6 +11,8 @@ import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.execution.Insert;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -118,6 +120,31 @@ public class LogTest extends SimpleDbTestBase {
         Database.getLogFile().recover();
     }
 
+    // insert the rows from..to-1 into a B+ tree
+    void insertRows(BTreeFile bf, Transaction t, int from, int to)
+        throws DbException, TransactionAbortedException, IOException {
+        for (int v = from; v < to; v++) {
+            Tuple value = new Tuple(bf.getTupleDesc());
+            value.setField(0, new IntField(v));
+            value.setField(1, new IntField(0));
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(), value);
+        }
+    }
+
+    // count the tuples of a B+ tree
+    int count(BTreeFile bf, Transaction t)
+        throws DbException, TransactionAbortedException {
+        DbFileIterator it = bf.iterator(t.getId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
     // create an initial database with two empty tables
     // does *not* initiate log file recovery
     void setup()
@@ -179,6 +206,96 @@ public class LogTest extends SimpleDbTestBase {
             throw new RuntimeException("LogTest: flushAllPages() had no effect");
     }
 
+    @Test public void TestPageLSN()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // check that flushing a page forces the log up to its pageLSN,
+        // and that log records are buffered until then
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1);
+        Page p = Database.getBufferPool().getPage(t1.getId(),
+                                                  new HeapPageId(hf1.getId(), 0),
+                                                  Permissions.READ_ONLY);
+        long durable = Database.getLogFile().getDurableLSN();
+        Database.getBufferPool().flushAllPages();
+        assertTrue(p.getPageLSN() > durable);
+        assertTrue(Database.getLogFile().getDurableLSN() >= p.getPageLSN());
+
+        long forces = Database.getLogFile().getForceCount();
+        Database.getLogFile().forceUpTo(p.getPageLSN());
+        assertEquals(forces, Database.getLogFile().getForceCount());
+        t1.commit();
+    }
+
+    @Test public void TestDeltaRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // check that a one-tuple insert is logged as a delta, not as
+        // two page images, and that checkpoints copy delta records
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        long bytes = Database.getLogFile().getLogBytes(t1.getId());
+        assertTrue(bytes > 0);
+        assertTrue(bytes < BufferPool.getPageSize() / 10);
+        Database.getLogFile().logCheckpoint();
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        look(hf1, t2, 3, true);
+        t2.commit();
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // check that a checkpoint does not write dirty pages
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        HeapPage xp1 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        Database.getLogFile().logCheckpoint();
+        HeapPage xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertEquals(xp1.getNumEmptySlots(), xp2.getNumEmptySlots());
+        t1.commit();
+
+        // *** Test:
+        // check that checkpoints are taken every checkpoint interval,
+        // and that recovery after them finds committed data
+        Database.getLogFile().setCheckpointInterval(1);
+        int checkpoints = Database.getLogFile().getCheckpointCount();
+        doInsert(hf1, 4, 5);
+        doInsert(hf2, 21, -1);
+        assertTrue(Database.getLogFile().getCheckpointCount() >= checkpoints + 2);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 22);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, true);
+        look(hf1, t, 5, true);
+        look(hf2, t, 21, true);
+        look(hf2, t, 22, false);
+        t.commit();
+    }
+
     @Test public void TestCommitCrash()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -436,6 +553,51 @@ public class LogTest extends SimpleDbTestBase {
     }
 
 
+    @Test public void TestBTreeAbortCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        File file3 = File.createTempFile("simple3", ".db");
+        file3.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(file3.getAbsolutePath(), 2, 0);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRows(bf, t1, 0, 100);
+        t1.commit();
+
+        // *** Test:
+        // insert enough rows to split leaf and internal pages, abort:
+        // the B+ tree pages should be rolled back
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRows(bf, t2, 100, 2000);
+        abort(t2);
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(100, count(bf, t));
+        t.commit();
+
+        // *** Test:
+        // insert without commit, crash: recovery should undo the
+        // B+ tree pages
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRows(bf, t3, 2000, 4000);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        bf = BTreeUtility.openBTreeFile(2, file3, 0);
+        Database.getLogFile().recover();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(100, count(bf, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
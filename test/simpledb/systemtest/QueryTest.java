@@ -8,6 +8,7 @@ import java.util.List;
 import org.junit.Test;
 
 import simpledb.storage.BufferPool;
+import simpledb.storage.FreeSpaceMap;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.storage.HeapFile;
@@ -31,6 +32,7 @@ public class QueryTest {
 	public static HeapFile createDuplicateHeapFile(List<List<Integer>> tuples, int columns, String colPrefix) throws IOException {
         File temp = File.createTempFile("table", ".dat");
         temp.deleteOnExit();
+        FreeSpaceMap.mapFileFor(temp).deleteOnExit();
         HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), columns);
         return Utility.openHeapFile(columns, colPrefix, temp);
 	}
@@ -0,0 +1,75 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.FreeSpaceMap;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.Transaction;
+
+/**
+ * Measures how long LogFile.recover() takes per GB of log.
+ * <p>
+ * Commits transactions of TUPLES_PER_TRANSACTION inserts each, without
+ * checkpoints, until the log holds the given number of megabytes; leaves
+ * one transaction running with its pages written, so recovery has to undo
+ * it; then restarts the database and times recovery, which has to redo the
+ * whole log.
+ * <p>
+ * Usage, after ant testcompile:
+ * <pre>
+ *     java -cp bin/src:bin/test:lib/* simpledb.systemtest.RecoveryBenchmark [megabytes]
+ * </pre>
+ */
+public class RecoveryBenchmark {
+
+    private static final int TUPLES_PER_TRANSACTION = 200;
+
+    public static void main(String[] args) throws Exception {
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 64;
+
+        Database.reset();
+        File file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        FreeSpaceMap.mapFileFor(file).deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.getLogFile().setCheckpointInterval(0);
+
+        int value = 0;
+        int transactions = 0;
+        long start = System.nanoTime();
+        while (logBytes() < megabytes << 20) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < TUPLES_PER_TRANSACTION; i++) {
+                Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(value++, 2));
+            }
+            t.commit();
+            transactions++;
+        }
+        Transaction loser = new Transaction();
+        loser.start();
+        for (int i = 0; i < TUPLES_PER_TRANSACTION; i++) {
+            Database.getBufferPool().insertTuple(loser.getId(), hf.getId(), Utility.getHeapTuple(-1, 2));
+        }
+        Database.getBufferPool().flushAllPages();
+        long bytes = logBytes();
+        System.out.printf("logged %.1f MB in %d transactions in %.1f s%n",
+                bytes / 1e6, transactions, (System.nanoTime() - start) / 1e9);
+
+        // crash and restart
+        Database.reset();
+        Utility.openHeapFile(2, file);
+        start = System.nanoTime();
+        Database.getLogFile().recover();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("recovered in %.2f s: %.1f s per GB of log%n", seconds, seconds / (bytes / 1e9));
+    }
+
+    private static long logBytes() throws IOException {
+        Database.getLogFile().force();
+        return Database.getLogFile().getDurableLSN();
+    }
+}
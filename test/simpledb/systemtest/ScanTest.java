@@ -14,6 +14,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -110,6 +111,42 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that a scan with read-ahead prefetches pages in batches and
+     * still reads every page from disk only once.
+     */
+    @Test public void testReadAhead() throws IOException, DbException, TransactionAbortedException {
+        class InstrumentedHeapFile extends HeapFile {
+            public InstrumentedHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) throws NoSuchElementException {
+                readCount.incrementAndGet();
+                return super.readPage(pid);
+            }
+
+            @Override
+            public List<Page> readPages(List<PageId> pids) {
+                readCount.addAndGet(pids.size());
+                return super.readPages(pids);
+            }
+
+            public final AtomicInteger readCount = new AtomicInteger();
+        }
+
+        final int PAGES = 30;
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992*PAGES, 1000, null, tuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        table.setReadAhead(8);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertTrue(Database.getBufferPool().getPrefetchCount() > 0);
+        assertEquals(PAGES, table.readCount.get());
+    }
+
     /** Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names
      * @throws IOException
      */
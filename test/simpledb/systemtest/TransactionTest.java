@@ -234,6 +234,11 @@ public class TransactionTest extends SimpleDbTestBase {
         validateTransactions(10);
     }
 
+    @Test public void testThirtyTwoThreads()
+    throws IOException, DbException, TransactionAbortedException {
+        validateTransactions(32);
+    }
+
     @Test public void testAllDirtyFails()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data